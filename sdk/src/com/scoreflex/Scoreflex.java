@@ -22,6 +22,7 @@ package com.scoreflex;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -30,6 +31,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -260,6 +262,60 @@ public class Scoreflex {
 	 */
 	public static final String INTENT_PLAY_LEVEL_EXTRA_LEADERBOARD_ID = "leaderboardId";
 
+	/**
+	 * Priority lane for requests other players are waiting on (@see
+	 * {@link #postEventually(String, RequestParams, ResponseHandler, String)}).
+	 */
+	public static final String PRIORITY_LANE_HIGH = "high";
+
+	/**
+	 * Priority lane for most requests (@see
+	 * {@link #postEventually(String, RequestParams, ResponseHandler, String)}).
+	 */
+	public static final String PRIORITY_LANE_DEFAULT = "default";
+
+	/**
+	 * Priority lane for requests that can wait (@see
+	 * {@link #postEventually(String, RequestParams, ResponseHandler, String)}).
+	 */
+	public static final String PRIORITY_LANE_LOW = "low";
+
+	/**
+	 * Time to live inferred from the resource (@see
+	 * {@link #postEventually(String, RequestParams, ResponseHandler, String, long)}).
+	 */
+	public static final long TIME_TO_LIVE_DEFAULT = 0;
+
+	/**
+	 * Time to live of requests that never expire (@see
+	 * {@link #postEventually(String, RequestParams, ResponseHandler, String, long)}).
+	 */
+	public static final long TIME_TO_LIVE_FOREVER = -1;
+
+	/**
+	 * Score compaction policy keeping every queued score submission (@see
+	 * {@link #setScoreCompactionPolicy(String, int)}).
+	 */
+	public static final int SCORE_COMPACTION_NONE = 0;
+
+	/**
+	 * Score compaction policy keeping the highest queued score submission (@see
+	 * {@link #setScoreCompactionPolicy(String, int)}).
+	 */
+	public static final int SCORE_COMPACTION_KEEP_HIGHEST = 1;
+
+	/**
+	 * Score compaction policy keeping the lowest queued score submission (@see
+	 * {@link #setScoreCompactionPolicy(String, int)}).
+	 */
+	public static final int SCORE_COMPACTION_KEEP_LOWEST = 2;
+
+	/**
+	 * Score compaction policy keeping the last queued score submission (@see
+	 * {@link #setScoreCompactionPolicy(String, int)}).
+	 */
+	public static final int SCORE_COMPACTION_KEEP_LAST = 3;
+
 	private static ConnectivityReceiver sConnectivityReceiver = new ConnectivityReceiver();
 
 	protected static final String DEFAULT_LANGUAGE_CODE = "en";
@@ -452,10 +508,12 @@ public class Scoreflex {
 	}
 
 	/**
-	 * A POST request that is guaranteed to be executed when a network
-	 * connection is present, surviving application reboot. The responseHandler
-	 * will be called only if the network is present when the request is first
-	 * run.
+	 * A POST request executed when a network connection is present, surviving
+	 * application reboot. A request waiting for the network is dropped once
+	 * its time to live, inferred from the resource, elapses, and a score
+	 * submission can be merged with a later one to the same leaderboard. The
+	 * responseHandler will be called only if the network is present when the
+	 * request is first run.
 	 *
 	 * @param resource
 	 * @param params
@@ -470,6 +528,81 @@ public class Scoreflex {
 		ScoreflexRestClient.postEventually(resource, params, responseHandler);
 	}
 
+	/**
+	 * A POST request executed when a network connection is present, surviving
+	 * application reboot. When the request has to wait for the network, it is
+	 * replayed from the given priority lane, and is dropped once its time to
+	 * live, inferred from the resource, elapses. A score submission can be
+	 * merged with a later one to the same leaderboard.
+	 *
+	 * @param resource
+	 * @param params
+	 *            The request parameters. Only serializable parameters are
+	 *            guaranteed to survive a network error or device reboot.
+	 * @param responseHandler
+	 *            An AsyncHttpClient response handler.
+	 * @param lane
+	 *            One of {@link #PRIORITY_LANE_HIGH},
+	 *            {@link #PRIORITY_LANE_DEFAULT} or {@link #PRIORITY_LANE_LOW},
+	 *            null to infer it from the resource.
+	 */
+	public static void postEventually(String resource,
+			Scoreflex.RequestParams params,
+			Scoreflex.ResponseHandler responseHandler, String lane) {
+		ScoreflexRestClient.postEventually(resource, params, responseHandler,
+				lane, TIME_TO_LIVE_DEFAULT);
+	}
+
+	/**
+	 * A POST request executed when a network connection is present, surviving
+	 * application reboot, unless it has to wait for the network longer than
+	 * the given time to live. When the request has to wait for the network, it
+	 * is replayed from the given priority lane. A score submission can be
+	 * merged with a later one to the same leaderboard.
+	 *
+	 * @param resource
+	 * @param params
+	 *            The request parameters. Only serializable parameters are
+	 *            guaranteed to survive a network error or device reboot.
+	 * @param responseHandler
+	 *            An AsyncHttpClient response handler.
+	 * @param lane
+	 *            One of {@link #PRIORITY_LANE_HIGH},
+	 *            {@link #PRIORITY_LANE_DEFAULT} or {@link #PRIORITY_LANE_LOW},
+	 *            null to infer it from the resource.
+	 * @param timeToLive
+	 *            The time in milliseconds after which the request is dropped
+	 *            if it could not be run, {@link #TIME_TO_LIVE_DEFAULT} to
+	 *            infer it from the resource or {@link #TIME_TO_LIVE_FOREVER}.
+	 */
+	public static void postEventually(String resource,
+			Scoreflex.RequestParams params,
+			Scoreflex.ResponseHandler responseHandler, String lane,
+			long timeToLive) {
+		ScoreflexRestClient.postEventually(resource, params, responseHandler,
+				lane, timeToLive);
+	}
+
+	/**
+	 * Replays right away the requests posted with
+	 * {@link #postEventually(String, RequestParams, ResponseHandler)} that are
+	 * waiting for the network, and returns a future telling when the ones
+	 * waiting at the time of the call have been delivered. Requests still in
+	 * their first attempt are not waited for.
+	 *
+	 * @param timeout
+	 *            The maximum time to wait in milliseconds.
+	 * @return A future completed with true once the requests have been
+	 *         delivered, false if the timeout elapsed first or if Scoreflex is
+	 *         not initialized.
+	 */
+	public static Future<Boolean> flushEventualRequests(long timeout) {
+		ScoreflexRequestVault vault = ScoreflexRequestVault.getDefaultVault();
+		if (null == vault)
+			return ScoreflexFuture.completed(false);
+		return vault.flush(timeout);
+	}
+
 	/**
 	 * A PUT request.
 	 *
@@ -500,6 +633,18 @@ public class Scoreflex {
 		ScoreflexRestClient.delete(resource, responseHandler);
 	}
 
+	/**
+	 * Enables the gzip compression of the POST and PUT request bodies larger
+	 * than 1 KB, such as big turns or batches of scores. Responses are always
+	 * requested gzipped. Disabled by default.
+	 *
+	 * @param enabled
+	 *            Whether large request bodies are compressed.
+	 */
+	public static void setRequestCompressionEnabled(boolean enabled) {
+		ScoreflexRestClient.setCompressRequests(enabled);
+	}
+
 	/**
 	 * Changes the default gravity.
 	 *
@@ -1154,6 +1299,26 @@ public class Scoreflex {
 		Scoreflex.postEventually(scoreResource, params, responseHandler);
 	}
 
+	/**
+	 * Sets how the score submissions waiting for the network are compacted.
+	 * While offline, every {@link #submitScore(String, long, RequestParams, ResponseHandler)}
+	 * is queued until it can be sent, but only one submission per leaderboard
+	 * usually matters: the policy tells which one is kept. Leaderboards keep
+	 * their highest queued score by default.
+	 *
+	 * @param leaderboardId
+	 *            The leaderboard id, null to set the policy of all the
+	 *            leaderboards without a specific one.
+	 * @param policy
+	 *            One of {@link #SCORE_COMPACTION_NONE},
+	 *            {@link #SCORE_COMPACTION_KEEP_HIGHEST},
+	 *            {@link #SCORE_COMPACTION_KEEP_LOWEST} or
+	 *            {@link #SCORE_COMPACTION_KEEP_LAST}.
+	 */
+	public static void setScoreCompactionPolicy(String leaderboardId, int policy) {
+		ScoreflexScoreCompactor.setPolicy(leaderboardId, policy);
+	}
+
 	/**
 	 * A helper method that submits a score to a leaderboard ID and show the
 	 * rank panel for the current player.
@@ -1235,20 +1400,44 @@ public class Scoreflex {
 	 */
 	public static void submitTurn(String challengeInstanceId,
 			RequestParams turn, Scoreflex.ResponseHandler responseHandler) {
-		final String turnResource = "/challenges/instances/"
-				+ challengeInstanceId + "/turns";
 		JSONObject body = new JSONObject();
 		try {
 			Set<String> parameters = turn.getParamNames();
 			for (String parameterName : parameters) {
 				body.put(parameterName, turn.getParamValue(parameterName));
 			}
+			submitTurn(challengeInstanceId, body, responseHandler);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A helper method that submits a turn to a challenge instance, the turn
+	 * data being a JSON object so that it can be nested.
+	 *
+	 * @param challengeInstanceId
+	 *            The challenge instance id.
+	 * @param turn
+	 *            The turn data, copied before the playing time is added.
+	 * @param responseHandler
+	 *            A response handler if the request is sent immediatly
+	 *            otherwise, will never get called (@see
+	 *            {@link #postEventually(String, RequestParams, ResponseHandler)}
+	 *            ).
+	 */
+	public static void submitTurn(String challengeInstanceId,
+			JSONObject turn, Scoreflex.ResponseHandler responseHandler) {
+		final String turnResource = "/challenges/instances/"
+				+ challengeInstanceId + "/turns";
+		try {
+			JSONObject data = new JSONObject(turn.toString());
 			long playingTime = Scoreflex.getPlayingSessionTime();
 			if (playingTime > 0) {
-				body.put("playingTime", playingTime);
+				data.put("playingTime", playingTime);
 			}
 			RequestParams params = new RequestParams();
-			params.put("body", body.toString());
+			params.put("body", data.toString());
 			Scoreflex.postEventually(turnResource, params, responseHandler);
 		} catch (JSONException e) {
 			e.printStackTrace();
@@ -1370,6 +1559,21 @@ public class Scoreflex {
 			return result;
 		}
 
+		/**
+		 * Adds the names of all parameters to a collection, without
+		 * allocating a set.
+		 *
+		 * @param names
+		 */
+		void addParamNamesTo(Collection<String> names) {
+			for (String name : this.fileParams.keySet())
+				names.add(name);
+			for (String name : this.urlParams.keySet())
+				names.add(name);
+			for (String name : this.urlParamsWithArray.keySet())
+				names.add(name);
+		}
+
 		/**
 		 * Returns the value for the given param. If the given param is
 		 * encountered multiple times, the first occurrence is returned.
@@ -1956,7 +2160,8 @@ public class Scoreflex {
 				int code = notification.getInt("code");
 				Scoreflex.RequestParams trackParams = new Scoreflex.RequestParams();
 				trackParams.put("code", Integer.toString(code));
-				Scoreflex.postEventually("/notifications/track", trackParams, null);
+				ScoreflexRestClient.postInBackground("/notifications/track",
+						trackParams);
 				if (NOTIFICATION_TYPE_CHALLENGE_INVITATION == code
 						|| NOTIFICATION_TYPE_YOUR_TURN_IN_CHALLENGE == code
 						|| NOTIFICATION_TYPE_CHALLENGE_ENDED == code) {
@@ -2133,7 +2338,7 @@ public class Scoreflex {
 	}
 
 	protected static void setNetworkAvailable(boolean state) {
-		if (state != sIsReachable) {
+		if (state != sIsReachable && null != sApplicationContext) {
 			Intent connectivityChangedIntent = new Intent(
 					Scoreflex.INTENT_CONNECTIVITY_CHANGED);
 			connectivityChangedIntent.putExtra(
@@ -2241,8 +2446,8 @@ public class Scoreflex {
 							String concatenatedFriends = "Facebook%3A"
 									+ TextUtils.join(",Facebook%3A",
 											invitedFriends);
-							Scoreflex.postEventually("/social/invitations/"
-									+ concatenatedFriends, null, null);
+							ScoreflexRestClient.postInBackground(
+									"/social/invitations/" + concatenatedFriends, null);
 						}
 					});
 		} catch (FacebookException e) {
@@ -0,0 +1,590 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * A {@link ScoreflexRestClient.Transport} keeping the responses of GET
+ * requests on disk, so that viewing a resource again costs a 304 response or
+ * no request at all.
+ *
+ * Responses are stored unless their Cache-Control forbids it, and served
+ * without a request for as long as their max-age or Expires header allows.
+ * Once stale, they are revalidated with an If-None-Match or
+ * If-Modified-Since request, a 304 response serving the stored body again as
+ * a live 200 response. Bodies served without a request are delivered to
+ * {@link ScoreflexRestClient.Transport.Callback#onCachedResponse(Header[], JSONObject)}
+ * so that they are not taken for a live answer of the server.
+ * Responses with neither a freshness lifetime nor a validator are not
+ * stored, nor are the ones of the reachability probes, which must always
+ * reach the server.
+ *
+ * Entries are keyed on the resource and its sorted parameters, without the
+ * access token which changes with each token refresh, and with the player
+ * id so that players sharing a device never see each other's responses. The
+ * cache is bounded in bytes, the least recently used entries being evicted
+ * first. Disk accesses are made on a single background thread.
+ *
+ *
+ */
+class ScoreflexCachingTransport implements ScoreflexRestClient.Transport {
+
+	/**
+	 * The default maximum size of the cache in bytes.
+	 */
+	protected static final long DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+
+	private static final String DIRECTORY_NAME = "scoreflex-http";
+
+	/**
+	 * The resources probing the reachability of the server, never cached.
+	 */
+	private static final String[] PROBE_RESOURCES = { "/network/ping" };
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private ScoreflexRestClient.Transport mTransport;
+	private long mMaxSize;
+	private File mParentDirectory;
+	private File mDirectory;
+	private LinkedHashMap<String, Long> mSizes;
+	private long mSize;
+	private ExecutorService mExecutor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ScoreflexHttpCache");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * @param transport
+	 *          The transport sending the requests not served from the cache
+	 * @param maxSize
+	 *          The maximum size of the cache in bytes
+	 */
+	public ScoreflexCachingTransport(ScoreflexRestClient.Transport transport,
+			long maxSize) {
+		this(transport, maxSize, null);
+	}
+
+	/**
+	 * @param transport
+	 *          The transport sending the requests not served from the cache
+	 * @param maxSize
+	 *          The maximum size of the cache in bytes
+	 * @param parentDirectory
+	 *          The directory the cache is kept in, null for the cache directory
+	 *          of the application
+	 */
+	public ScoreflexCachingTransport(ScoreflexRestClient.Transport transport,
+			long maxSize, File parentDirectory) {
+		mTransport = transport;
+		mMaxSize = maxSize;
+		mParentDirectory = parentDirectory;
+	}
+
+	/**
+	 * @return Whether the response of a GET request can be cached
+	 */
+	protected static boolean isCacheable(URI uri) {
+		String path = uri.getPath();
+		if (null == path)
+			return true;
+
+		for (String resource : PROBE_RESOURCES)
+			if (path.endsWith(resource))
+				return false;
+		return true;
+	}
+
+	@Override
+	public void send(final HttpUriRequest request, final Callback callback) {
+		if (!"GET".equals(request.getMethod()) || !isCacheable(request.getURI())) {
+			mTransport.send(request, callback);
+			return;
+		}
+
+		final Handler handler = null != Looper.myLooper() ? new Handler() : null;
+		final String key = getKey(request.getURI());
+		mExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				final Entry entry = read(key);
+				if (null != entry && entry.isFresh()) {
+					deliverCached(handler, callback, new Header[0], entry.mBody);
+					return;
+				}
+
+				if (null != entry && null != entry.mETag)
+					request.setHeader("If-None-Match", entry.mETag);
+				if (null != entry && null != entry.mLastModified)
+					request.setHeader("If-Modified-Since", entry.mLastModified);
+
+				mTransport.send(request, new Callback() {
+
+					@Override
+					public void onResponse(int statusCode, Header[] headers,
+							JSONObject body) {
+						if (304 == statusCode && null != entry) {
+							final Entry revalidated = entry.revalidate(headers);
+							mExecutor.execute(new Runnable() {
+
+								@Override
+								public void run() {
+									write(revalidated);
+								}
+							});
+							deliver(handler, callback, 200, headers, entry.mBody);
+							return;
+						}
+
+						if (200 == statusCode && null != body) {
+							final Entry stored = Entry.fromResponse(key, headers, body);
+							mExecutor.execute(new Runnable() {
+
+								@Override
+								public void run() {
+									if (null != stored)
+										write(stored);
+									else
+										remove(key);
+								}
+							});
+						}
+						deliver(handler, callback, statusCode, headers, body);
+					}
+
+					@Override
+					public void onCachedResponse(Header[] headers, JSONObject body) {
+						deliverCached(handler, callback, headers, body);
+					}
+
+					@Override
+					public void onFailure(final Throwable e) {
+						Runnable failure = new Runnable() {
+
+							@Override
+							public void run() {
+								callback.onFailure(e);
+							}
+						};
+						if (null != handler)
+							handler.post(failure);
+						else
+							failure.run();
+					}
+				});
+			}
+		});
+	}
+
+	private static void deliver(Handler handler, final Callback callback,
+			final int statusCode, final Header[] headers, final JSONObject body) {
+		Runnable result = new Runnable() {
+
+			@Override
+			public void run() {
+				callback.onResponse(statusCode, headers, body);
+			}
+		};
+		if (null != handler)
+			handler.post(result);
+		else
+			result.run();
+	}
+
+	private static void deliverCached(Handler handler, final Callback callback,
+			final Header[] headers, final JSONObject body) {
+		Runnable result = new Runnable() {
+
+			@Override
+			public void run() {
+				callback.onCachedResponse(headers, body);
+			}
+		};
+		if (null != handler)
+			handler.post(result);
+		else
+			result.run();
+	}
+
+	/**
+	 * Returns the cache key of a request: the player id, the path and the
+	 * sorted query parameters but the access token.
+	 */
+	protected static String getKey(URI uri) {
+		List<String> params = new ArrayList<String>();
+		String query = uri.getRawQuery();
+		if (null != query) {
+			for (String param : query.split("&")) {
+				if (0 < param.length() && !param.startsWith("accessToken="))
+					params.add(param);
+			}
+		}
+		Collections.sort(params);
+
+		StringBuilder key = new StringBuilder();
+		key.append(ScoreflexRestClient.getPlayerId()).append(' ');
+		key.append(uri.getHost()).append(uri.getRawPath());
+		for (int i = 0; i < params.size(); i++)
+			key.append(0 == i ? '?' : '&').append(params.get(i));
+		return key.toString();
+	}
+
+	/**
+	 * Returns the cache directory, listing its entries on first call.
+	 *
+	 * @return The directory, null if Scoreflex is not initialized
+	 */
+	private File getDirectory() {
+		if (null != mDirectory)
+			return mDirectory;
+
+		File parent = mParentDirectory;
+		if (null == parent) {
+			Context context = Scoreflex.getApplicationContext();
+			if (null == context)
+				return null;
+			parent = context.getCacheDir();
+		}
+
+		File directory = new File(parent, DIRECTORY_NAME);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.e("Scoreflex", "Could not create HTTP cache directory");
+			return null;
+		}
+
+		// Least recently used first, as files are touched when read
+		File[] files = directory.listFiles();
+		if (null == files)
+			files = new File[0];
+		Arrays.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(File lhs, File rhs) {
+				long lhsModified = lhs.lastModified();
+				long rhsModified = rhs.lastModified();
+				return lhsModified < rhsModified ? -1
+						: (lhsModified == rhsModified ? 0 : 1);
+			}
+		});
+
+		mSizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		mSize = 0;
+		for (File file : files) {
+			// Left over by an interrupted write
+			if (file.getName().endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			mSizes.put(file.getName(), file.length());
+			mSize += file.length();
+		}
+		mDirectory = directory;
+		return mDirectory;
+	}
+
+	private Entry read(String key) {
+		File directory = getDirectory();
+		if (null == directory)
+			return null;
+
+		String name = getFileName(key);
+		if (null == mSizes.get(name))
+			return null;
+
+		File file = new File(directory, name);
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] bytes = new byte[(int) file.length()];
+			int length = 0;
+			while (length < bytes.length) {
+				int read = in.read(bytes, length, bytes.length - length);
+				if (read < 0)
+					throw new IOException("Truncated cache entry");
+				length += read;
+			}
+			Entry entry = new Entry(new JSONObject(new String(bytes, "UTF-8")));
+			if (!key.equals(entry.mKey))
+				return null;
+
+			file.setLastModified(System.currentTimeMillis());
+			return entry;
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not read HTTP cache entry", e);
+		} catch (JSONException e) {
+			Log.e("Scoreflex", "Could not read HTTP cache entry", e);
+		} finally {
+			close(in);
+		}
+		remove(key);
+		return null;
+	}
+
+	private void write(Entry entry) {
+		File directory = getDirectory();
+		if (null == directory)
+			return;
+
+		String name = getFileName(entry.mKey);
+		File file = new File(directory, name);
+		File temporary = new File(directory, name + ".tmp");
+		OutputStream out = null;
+		try {
+			byte[] bytes = entry.toJSON().toString().getBytes("UTF-8");
+			if (bytes.length > mMaxSize / 4) {
+				remove(entry.mKey);
+				return;
+			}
+
+			out = new FileOutputStream(temporary);
+			out.write(bytes);
+			out.close();
+			out = null;
+			if (!temporary.renameTo(file))
+				throw new IOException("Could not rename " + temporary);
+
+			Long previous = mSizes.put(name, (long) bytes.length);
+			mSize += bytes.length - (null != previous ? previous : 0);
+			evict();
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not write HTTP cache entry", e);
+			temporary.delete();
+		} catch (JSONException e) {
+			Log.e("Scoreflex", "Could not write HTTP cache entry", e);
+		} finally {
+			close(out);
+		}
+	}
+
+	private void remove(String key) {
+		File directory = getDirectory();
+		if (null == directory)
+			return;
+
+		String name = getFileName(key);
+		Long size = mSizes.remove(name);
+		if (null != size)
+			mSize -= size;
+		new File(directory, name).delete();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache fits its
+	 * maximum size.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> it = mSizes.entrySet().iterator();
+		while (mSize > mMaxSize && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			new File(mDirectory, eldest.getKey()).delete();
+			mSize -= eldest.getValue();
+			it.remove();
+		}
+	}
+
+	private static String getFileName(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(key.getBytes("UTF-8"));
+			char[] name = new char[hash.length * 2];
+			for (int i = 0; i < hash.length; i++) {
+				name[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+				name[i * 2 + 1] = HEX[hash[i] & 0xF];
+			}
+			return new String(name);
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static void close(Closeable closeable) {
+		if (null == closeable)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing left to do
+		}
+	}
+
+	/**
+	 * A stored response along with its validators and expiration time.
+	 */
+	private static class Entry {
+		protected final String mKey;
+		protected final String mETag;
+		protected final String mLastModified;
+		protected final long mExpires;
+		protected final JSONObject mBody;
+
+		public Entry(String key, String eTag, String lastModified, long expires,
+				JSONObject body) {
+			mKey = key;
+			mETag = eTag;
+			mLastModified = lastModified;
+			mExpires = expires;
+			mBody = body;
+		}
+
+		public Entry(JSONObject json) throws JSONException {
+			this(json.getString("key"), json.optString("etag", null), json
+					.optString("lastModified", null), json.getLong("expires"), json
+					.getJSONObject("body"));
+		}
+
+		/**
+		 * Creates the entry of a response.
+		 *
+		 * @return The entry, null if the response is not to be stored
+		 */
+		public static Entry fromResponse(String key, Header[] headers,
+				JSONObject body) {
+			String cacheControl = getHeader(headers, "Cache-Control");
+			if (null != cacheControl
+					&& cacheControl.toLowerCase().indexOf("no-store") >= 0)
+				return null;
+
+			String eTag = getHeader(headers, "ETag");
+			String lastModified = getHeader(headers, "Last-Modified");
+			long expires = getExpires(headers);
+			if (null == eTag && null == lastModified
+					&& expires <= System.currentTimeMillis())
+				return null;
+			return new Entry(key, eTag, lastModified, expires, body);
+		}
+
+		/**
+		 * Returns the entry updated with the headers of a 304 response.
+		 */
+		public Entry revalidate(Header[] headers) {
+			String eTag = getHeader(headers, "ETag");
+			String lastModified = getHeader(headers, "Last-Modified");
+			return new Entry(mKey, null != eTag ? eTag : mETag,
+					null != lastModified ? lastModified : mLastModified,
+					getExpires(headers), mBody);
+		}
+
+		public boolean isFresh() {
+			return System.currentTimeMillis() < mExpires;
+		}
+
+		public JSONObject toJSON() throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("key", mKey);
+			if (null != mETag)
+				json.put("etag", mETag);
+			if (null != mLastModified)
+				json.put("lastModified", mLastModified);
+			json.put("expires", mExpires);
+			json.put("body", mBody);
+			return json;
+		}
+
+		/**
+		 * Returns the time until which a response is fresh, from its max-age or
+		 * its Expires header relative to its Date header.
+		 */
+		private static long getExpires(Header[] headers) {
+			long now = System.currentTimeMillis();
+			String cacheControl = getHeader(headers, "Cache-Control");
+			if (null != cacheControl) {
+				long maxAge = -1;
+				for (String directive : cacheControl.toLowerCase().split(",")) {
+					directive = directive.trim();
+					if ("no-cache".equals(directive))
+						return 0;
+					if (directive.startsWith("max-age=")) {
+						try {
+							maxAge = Long.parseLong(directive.substring(8));
+						} catch (NumberFormatException e) {
+							maxAge = 0;
+						}
+					}
+				}
+				if (maxAge >= 0)
+					return now + maxAge * 1000;
+			}
+
+			String expires = getHeader(headers, "Expires");
+			if (null == expires)
+				return 0;
+			try {
+				String date = getHeader(headers, "Date");
+				long serverNow = null != date ? DateUtils.parseDate(date).getTime()
+						: now;
+				return now + DateUtils.parseDate(expires).getTime() - serverNow;
+			} catch (DateParseException e) {
+				return 0;
+			}
+		}
+
+		private static String getHeader(Header[] headers, String name) {
+			if (null == headers)
+				return null;
+			for (Header header : headers) {
+				if (name.equalsIgnoreCase(header.getName()))
+					return header.getValue();
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpResponseException;
+
+import android.util.Log;
+
+/**
+ * Stops sending requests to a family of resources while the server keeps
+ * failing them, so that a degraded API is not hammered by every device.
+ *
+ * The breaker is closed while requests succeed. After a number of
+ * consecutive server failures (a 5xx status or a request timing out) it
+ * opens: requests are failed right away with an {@link OpenException}
+ * instead of being sent. Once the open duration elapsed it is half open: a
+ * single probe request is let through, closing the breaker if it succeeds
+ * and opening it again for twice as long if it fails. Failures that are not
+ * the server's, such as the device being offline, are not counted.
+ *
+ * There is one breaker per family of resources (see
+ * {@link #getFamily(String)}), shared by the request vault and the
+ * foreground requests.
+ *
+ *
+ */
+class ScoreflexCircuitBreaker {
+
+	private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	private static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+	private static final long MAX_OPEN_DURATION = 10 * 60 * 1000;
+
+	/**
+	 * Score submissions and leaderboards.
+	 */
+	public static final String FAMILY_SCORES = "scores";
+
+	/**
+	 * Challenge instances and turns.
+	 */
+	public static final String FAMILY_TURNS = "turns";
+
+	/**
+	 * Device tokens and notification tracking.
+	 */
+	public static final String FAMILY_NOTIFICATIONS = "notifications";
+
+	/**
+	 * Web views content.
+	 */
+	public static final String FAMILY_WEB = "web";
+
+	/**
+	 * Every other resource.
+	 */
+	public static final String FAMILY_DEFAULT = "default";
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * The failure reported for a request not sent because its breaker is
+	 * open.
+	 *
+	 *
+	 */
+	public static class OpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private long mRetryAfter;
+
+		public OpenException(String family, long retryAfter) {
+			super("Requests to " + family + " resources are suspended");
+			mRetryAfter = retryAfter;
+		}
+
+		/**
+		 * @return The time in milliseconds after which the breaker lets a probe
+		 *         through
+		 */
+		public long getRetryAfter() {
+			return mRetryAfter;
+		}
+	}
+
+	private static final HashMap<String, ScoreflexCircuitBreaker> sBreakers = new HashMap<String, ScoreflexCircuitBreaker>();
+
+	/**
+	 * Returns the breaker of the family of the given resource, creating it on
+	 * first call.
+	 *
+	 * @param resource
+	 * @return
+	 */
+	public static ScoreflexCircuitBreaker forResource(String resource) {
+		String family = getFamily(resource);
+		synchronized(sBreakers) {
+			ScoreflexCircuitBreaker breaker = sBreakers.get(family);
+			if (null == breaker) {
+				breaker = new ScoreflexCircuitBreaker(family,
+						DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+				sBreakers.put(family, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	/**
+	 * Infers the family of a resource.
+	 *
+	 * @param resource
+	 * @return One of the FAMILY_ constants
+	 */
+	public static String getFamily(String resource) {
+		if (null == resource)
+			return FAMILY_DEFAULT;
+
+		if (resource.startsWith("/scores/")
+				|| resource.startsWith("/leaderboards/"))
+			return FAMILY_SCORES;
+
+		if (resource.startsWith("/challenges/"))
+			return FAMILY_TURNS;
+
+		if (resource.startsWith("/notifications/"))
+			return FAMILY_NOTIFICATIONS;
+
+		if (resource.startsWith("/web/") || "/web".equals(resource))
+			return FAMILY_WEB;
+
+		return FAMILY_DEFAULT;
+	}
+
+	/**
+	 * Tells whether a request failed because of the server: it answered with
+	 * a 5xx status or did not answer in time.
+	 *
+	 * @param e
+	 * @return
+	 */
+	public static boolean isServerFailure(Throwable e) {
+		if (e instanceof HttpResponseException)
+			return ((HttpResponseException) e).getStatusCode() >= 500;
+
+		// Connection and socket timeouts
+		return e instanceof NoHttpResponseException
+				|| e instanceof InterruptedIOException;
+	}
+
+	private String mFamily;
+	private int mFailureThreshold;
+	private long mBaseOpenDuration;
+	private long mOpenDuration;
+	private State mState = State.CLOSED;
+	private int mFailures;
+	private long mRetryAt;
+
+	public ScoreflexCircuitBreaker(String family, int failureThreshold,
+			long openDuration) {
+		mFamily = family;
+		mFailureThreshold = Math.max(1, failureThreshold);
+		mBaseOpenDuration = openDuration;
+		mOpenDuration = openDuration;
+	}
+
+	public String getFamily() {
+		return mFamily;
+	}
+
+	public synchronized State getState() {
+		return mState;
+	}
+
+	/**
+	 * Tells whether a request can be sent, letting a single probe through once
+	 * an open breaker's duration elapsed. Another probe is let through if the
+	 * previous one got no answer for as long.
+	 *
+	 * @return true if the request can be sent, false if it must fail right away
+	 */
+	public synchronized boolean allowRequest() {
+		if (State.CLOSED == mState)
+			return true;
+
+		long now = System.currentTimeMillis();
+		if (now < mRetryAt)
+			return false;
+
+		mState = State.HALF_OPEN;
+		mRetryAt = now + mOpenDuration;
+		return true;
+	}
+
+	/**
+	 * @return The time in milliseconds before a request can be sent, 0 if it
+	 *         can be sent right away
+	 */
+	public synchronized long getRetryAfter() {
+		if (State.CLOSED == mState)
+			return 0;
+		return Math.max(0, mRetryAt - System.currentTimeMillis());
+	}
+
+	/**
+	 * @return The failure to report for a request not sent
+	 */
+	public OpenException newOpenException() {
+		return new OpenException(mFamily, getRetryAfter());
+	}
+
+	/**
+	 * Records the outcome of a request that was sent.
+	 *
+	 * @param e
+	 *          The failure, null if the request succeeded
+	 */
+	public void onResult(Throwable e) {
+		if (isServerFailure(e))
+			onFailure();
+		else if (null == e || e instanceof HttpResponseException)
+			onSuccess();
+	}
+
+	/**
+	 * Records a request answered by the server.
+	 */
+	public synchronized void onSuccess() {
+		if (State.CLOSED != mState)
+			Log.i("Scoreflex", "Resuming requests to " + mFamily + " resources");
+		mState = State.CLOSED;
+		mFailures = 0;
+		mOpenDuration = mBaseOpenDuration;
+	}
+
+	/**
+	 * Records a server failure.
+	 */
+	public synchronized void onFailure() {
+		if (State.HALF_OPEN == mState)
+			mOpenDuration = Math.min(MAX_OPEN_DURATION, mOpenDuration * 2);
+		else if (State.CLOSED != mState || ++mFailures < mFailureThreshold)
+			return;
+
+		mState = State.OPEN;
+		mRetryAt = System.currentTimeMillis() + mOpenDuration;
+		Log.w("Scoreflex", "Server failing " + mFamily
+				+ " requests, suspending them for " + mOpenDuration + "ms");
+	}
+
+}
@@ -0,0 +1,308 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps the access token, SID and player id of the player in memory, so that
+ * reading them on every request does not look the SharedPreferences up.
+ *
+ * The in-memory copy is authoritative: it is loaded from the preferences
+ * once, replaced as a whole on each change, and read as an immutable
+ * {@link Credentials} snapshot so that readers never see a token along with
+ * the SID of another one. Changes are written behind to the preferences on a
+ * background thread, consecutive changes being coalesced into a single
+ * write of the latest snapshot.
+ *
+ *
+ */
+class ScoreflexCredentialStore {
+
+	private static final String ACCESS_TOKEN_PREF_NAME = "__scoreflex_access_token";
+	private static final String ACCESS_TOKEN_IS_ANONYMOUS_PREF_NAME = "__scoreflex_access_token_is_anonymous";
+	private static final String SID_PREF_NAME = "__scoreflex_sid";
+	private static final String PLAYER_ID_PREF_NAME = "__player_id";
+
+	/**
+	 * An immutable snapshot of the credentials.
+	 *
+	 *
+	 */
+	public static class Credentials {
+		protected final String mAccessToken;
+		protected final boolean mIsAnonymous;
+		protected final String mSID;
+		protected final String mPlayerId;
+
+		public Credentials(String accessToken, boolean isAnonymous, String sid,
+				String playerId) {
+			mAccessToken = accessToken;
+			mIsAnonymous = null == accessToken || isAnonymous;
+			mSID = sid;
+			mPlayerId = playerId;
+		}
+
+		public String getAccessToken() {
+			return mAccessToken;
+		}
+
+		public boolean isAnonymous() {
+			return mIsAnonymous;
+		}
+
+		public String getSID() {
+			return mSID;
+		}
+
+		public String getPlayerId() {
+			return mPlayerId;
+		}
+
+		public Credentials withAccessToken(String accessToken, boolean isAnonymous) {
+			return new Credentials(accessToken, isAnonymous, mSID, mPlayerId);
+		}
+
+		public Credentials withSID(String sid) {
+			return new Credentials(mAccessToken, mIsAnonymous, sid, mPlayerId);
+		}
+
+		public Credentials withPlayerId(String playerId) {
+			return new Credentials(mAccessToken, mIsAnonymous, mSID, playerId);
+		}
+	}
+
+	/**
+	 * Changes a snapshot of the credentials.
+	 */
+	public interface Update {
+		public Credentials apply(Credentials credentials);
+	}
+
+	private static final Credentials EMPTY = new Credentials(null, true, null,
+			null);
+
+	private static ScoreflexCredentialStore sDefaultStore;
+
+	/**
+	 * Returns the store of the Scoreflex preferences, creating it on first
+	 * call.
+	 *
+	 * @return
+	 */
+	public static synchronized ScoreflexCredentialStore getDefault() {
+		if (null == sDefaultStore)
+			sDefaultStore = new ScoreflexCredentialStore();
+		return sDefaultStore;
+	}
+
+	private AtomicReference<Credentials> mCredentials = new AtomicReference<Credentials>();
+	private AtomicBoolean mIsWritePending = new AtomicBoolean();
+	private ExecutorService mWriter = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ScoreflexCredentialWriter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Returns the current credentials, loading them from the Scoreflex
+	 * preferences on first call.
+	 *
+	 * @return The credentials, empty if Scoreflex is not initialized
+	 */
+	public Credentials get() {
+		return get(null);
+	}
+
+	/**
+	 * Returns the current credentials, loading them from the Scoreflex
+	 * preferences of the given context on first call.
+	 *
+	 * @param context
+	 *          The context to load the credentials with if Scoreflex is not
+	 *          initialized, can be null
+	 * @return The credentials, empty if they could not be loaded
+	 */
+	public Credentials get(Context context) {
+		Credentials credentials = mCredentials.get();
+		if (null != credentials)
+			return credentials;
+
+		SharedPreferences prefs = null != context ? Scoreflex
+				.getSharedPreferences(context) : Scoreflex.getSharedPreferences();
+		if (null == prefs)
+			return EMPTY;
+
+		credentials = new Credentials(prefs.getString(ACCESS_TOKEN_PREF_NAME,
+				null), prefs.getBoolean(ACCESS_TOKEN_IS_ANONYMOUS_PREF_NAME, true),
+				prefs.getString(SID_PREF_NAME, null), prefs.getString(
+						PLAYER_ID_PREF_NAME, null));
+		if (mCredentials.compareAndSet(null, credentials))
+			return credentials;
+		return mCredentials.get();
+	}
+
+	/**
+	 * Replaces all the credentials at once.
+	 *
+	 * @param accessToken
+	 * @param isAnonymous
+	 * @param sid
+	 * @param playerId
+	 */
+	public void set(final String accessToken, final boolean isAnonymous,
+			final String sid, final String playerId) {
+		update(new Update() {
+
+			@Override
+			public Credentials apply(Credentials credentials) {
+				return new Credentials(accessToken, isAnonymous, sid, playerId);
+			}
+		});
+	}
+
+	public void setAccessToken(final String accessToken,
+			final boolean isAnonymous) {
+		update(new Update() {
+
+			@Override
+			public Credentials apply(Credentials credentials) {
+				return credentials.withAccessToken(accessToken, isAnonymous);
+			}
+		});
+	}
+
+	public void setSID(final String sid) {
+		update(new Update() {
+
+			@Override
+			public Credentials apply(Credentials credentials) {
+				return credentials.withSID(sid);
+			}
+		});
+	}
+
+	public void setPlayerId(final String playerId) {
+		update(new Update() {
+
+			@Override
+			public Credentials apply(Credentials credentials) {
+				return credentials.withPlayerId(playerId);
+			}
+		});
+	}
+
+	/**
+	 * Removes all the credentials if the access token is the given one.
+	 *
+	 * @param accessToken
+	 * @return Whether the credentials were removed, false if the access token
+	 *         was already replaced
+	 */
+	public boolean invalidate(String accessToken) {
+		Credentials credentials;
+		do {
+			credentials = get();
+			if (null == accessToken
+					|| !accessToken.equals(credentials.mAccessToken))
+				return false;
+		} while (!mCredentials.compareAndSet(credentials, new Credentials(null,
+				true, null, null)));
+
+		scheduleWrite();
+		return true;
+	}
+
+	/**
+	 * Changes the credentials atomically and schedules their persistence.
+	 *
+	 * @param update
+	 * @return The new credentials
+	 */
+	public Credentials update(Update update) {
+		Credentials credentials;
+		Credentials updated;
+		do {
+			credentials = get();
+			updated = update.apply(credentials);
+		} while (!mCredentials.compareAndSet(EMPTY != credentials ? credentials
+				: null, updated));
+
+		scheduleWrite();
+		return updated;
+	}
+
+	/**
+	 * Writes the latest credentials to the preferences, unless a write is
+	 * already scheduled and will pick them up.
+	 */
+	private void scheduleWrite() {
+		if (!mIsWritePending.compareAndSet(false, true))
+			return;
+
+		mWriter.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				mIsWritePending.set(false);
+				write(mCredentials.get());
+			}
+		});
+	}
+
+	private static void write(Credentials credentials) {
+		SharedPreferences prefs = Scoreflex.getSharedPreferences();
+		if (null == prefs || null == credentials)
+			return;
+
+		SharedPreferences.Editor editor = prefs.edit();
+		if (null == credentials.mAccessToken) {
+			editor.remove(ACCESS_TOKEN_PREF_NAME);
+			editor.remove(ACCESS_TOKEN_IS_ANONYMOUS_PREF_NAME);
+		} else {
+			editor.putString(ACCESS_TOKEN_PREF_NAME, credentials.mAccessToken);
+			editor.putBoolean(ACCESS_TOKEN_IS_ANONYMOUS_PREF_NAME,
+					credentials.mIsAnonymous);
+		}
+		if (null == credentials.mSID)
+			editor.remove(SID_PREF_NAME);
+		else
+			editor.putString(SID_PREF_NAME, credentials.mSID);
+		if (null == credentials.mPlayerId)
+			editor.remove(PLAYER_ID_PREF_NAME);
+		else
+			editor.putString(PLAYER_ID_PREF_NAME, credentials.mPlayerId);
+		// apply() is not available before API level 9
+		editor.commit();
+	}
+
+}
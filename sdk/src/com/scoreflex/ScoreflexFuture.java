@@ -0,0 +1,109 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} completed explicitly by the code producing its result.
+ *
+ *
+ * @param <T>
+ *          The result type
+ */
+class ScoreflexFuture<T> implements Future<T> {
+
+	private final CountDownLatch mDone = new CountDownLatch(1);
+	private T mResult;
+	private boolean mCancelled;
+
+	/**
+	 * Returns an already completed future.
+	 *
+	 * @param result
+	 * @return
+	 */
+	public static <T> ScoreflexFuture<T> completed(T result) {
+		ScoreflexFuture<T> future = new ScoreflexFuture<T>();
+		future.set(result);
+		return future;
+	}
+
+	/**
+	 * Completes the future.
+	 *
+	 * @param result
+	 * @return false if the future was already completed or cancelled
+	 */
+	public synchronized boolean set(T result) {
+		if (isDone())
+			return false;
+
+		mResult = result;
+		mDone.countDown();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if (isDone())
+			return false;
+
+		mCancelled = true;
+		mDone.countDown();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return 0 == mDone.getCount();
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		mDone.await();
+		return getResult();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!mDone.await(timeout, unit))
+			throw new TimeoutException();
+		return getResult();
+	}
+
+	private synchronized T getResult() {
+		if (mCancelled)
+			throw new CancellationException();
+		return mResult;
+	}
+
+}
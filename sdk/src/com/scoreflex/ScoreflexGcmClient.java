@@ -26,7 +26,6 @@ import org.json.JSONObject;
 
 import com.scoreflex.google.ScoreflexGcmWrapper;
 import com.scoreflex.google.ScoreflexGoogleWrapper;
-import com.scoreflex.Scoreflex.Response;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -75,15 +74,7 @@ public class ScoreflexGcmClient {
 	private static void storeRegistrationIdToScoreflex(String registrationId){
 		Scoreflex.RequestParams params = new Scoreflex.RequestParams();
 		params.put("token", registrationId);
-		Scoreflex.postEventually("/notifications/deviceTokens", params, new Scoreflex.ResponseHandler(){
-			public void onFailure(Throwable e, Response errorResponse) {
-
-			}
-
-			public void onSuccess(Response response) {
-
-			}
-		});
+		ScoreflexRestClient.postInBackground("/notifications/deviceTokens", params);
 	}
 
 	protected static String getRegistrationId(Context c) {
@@ -0,0 +1,132 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of positive values with power of two buckets, recorded and
+ * read without locks so that it can be updated on hot paths and polled at
+ * any time. Bucket 0 counts the values below 1, and bucket i the values from
+ * 2^(i-1) included to 2^i excluded.
+ *
+ * Reads are not atomic as a whole: a value recorded during a read may be
+ * counted by some of the figures only.
+ *
+ *
+ */
+class ScoreflexHistogram {
+
+	private static final int BUCKET_COUNT = 64;
+
+	private AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private AtomicLong mCount = new AtomicLong();
+	private AtomicLong mSum = new AtomicLong();
+	private AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * Records a value, negative values being recorded as 0.
+	 *
+	 * @param value
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		mBuckets.incrementAndGet(getBucket(value));
+		mCount.incrementAndGet();
+		mSum.addAndGet(value);
+		long max;
+		while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value))
+			;
+	}
+
+	/**
+	 * @return The number of recorded values
+	 */
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * @return The largest recorded value, 0 if none was recorded
+	 */
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * @return The mean of the recorded values, 0 if none was recorded
+	 */
+	public double getMean() {
+		long count = mCount.get();
+		return 0 == count ? 0 : (double) mSum.get() / count;
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile: the upper bound of the
+	 * bucket holding it, or the largest recorded value if lower.
+	 *
+	 * @param percentile
+	 *          Between 0 and 100
+	 * @return The bound, 0 if no value was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] buckets = getBucketCounts();
+		long count = 0;
+		for (long bucket : buckets)
+			count += bucket;
+		if (0 == count)
+			return 0;
+
+		long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile))
+				/ 100 * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets[i];
+			if (seen >= Math.max(1, rank))
+				return Math.min(mMax.get(), getUpperBound(i));
+		}
+		return mMax.get();
+	}
+
+	/**
+	 * @return The count of each bucket
+	 */
+	public long[] getBucketCounts() {
+		long[] buckets = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			buckets[i] = mBuckets.get(i);
+		return buckets;
+	}
+
+	/**
+	 * @param bucket
+	 * @return The largest value counted by the given bucket
+	 */
+	public static long getUpperBound(int bucket) {
+		return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	private static int getBucket(long value) {
+		return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+}
@@ -0,0 +1,450 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The compact binary format of persisted jobs.
+ *
+ * Jobs are written as frames:
+ *
+ * <pre>
+ * type (1 byte) | payload length (varint) | payload | CRC32 of type and payload (4 bytes)
+ * </pre>
+ *
+ * The payload of an {@link #FRAME_ADD} frame is the job id followed by the
+ * job encoded as a tagged value: integers and lengths are varints and
+ * strings are length prefixed UTF-8. When interning is enabled, object keys
+ * and the values of keys that repeat from job to job (resource, access
+ * token, lang...) are only written once, by a {@link #FRAME_STRING} frame
+ * defining the next index of the string table, and are then referenced by
+ * index. Interning makes a frame depend on the frames before it, so it is
+ * only used for data read from its beginning.
+ *
+ * A codec instance holds the string table of one stream: it can write a new
+ * stream, or read an existing one and then append to it.
+ *
+ *
+ */
+class ScoreflexJobCodec {
+
+	/**
+	 * Version of the format, the newline terminated JSON journal being version 1.
+	 */
+	public static final int VERSION = 2;
+
+	/**
+	 * Frames larger than this are considered corrupted.
+	 */
+	private static final int MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+
+	public static final int FRAME_STRING = 1;
+	public static final int FRAME_ADD = 2;
+	public static final int FRAME_REMOVE = 3;
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_FALSE = 1;
+	private static final int TAG_TRUE = 2;
+	private static final int TAG_LONG = 3;
+	private static final int TAG_DOUBLE = 4;
+	private static final int TAG_STRING = 5;
+	private static final int TAG_STRING_REF = 6;
+	private static final int TAG_OBJECT = 7;
+	private static final int TAG_ARRAY = 8;
+
+	private static final HashSet<String> INTERNED_VALUE_KEYS = new HashSet<String>(
+			Arrays.asList("resource", "lane", "accessToken", "sid", "lang",
+					"sdkVersion", "handledServices"));
+
+	private boolean mInterning;
+	private HashMap<String, Integer> mStringIndexes = new HashMap<String, Integer>();
+	private ArrayList<String> mStrings = new ArrayList<String>();
+	private ByteArrayOutputStream mPayload = new ByteArrayOutputStream();
+	private ByteArrayOutputStream mFrame = new ByteArrayOutputStream();
+	private CRC32 mCrc = new CRC32();
+
+	/**
+	 * A frame read back from a stream.
+	 */
+	public static class Record {
+		public int mType;
+		public String mId;
+		public JSONObject mJob;
+
+		/**
+		 * Number of bytes read for this record, including the string
+		 * definitions preceding it.
+		 */
+		public int mSize;
+	}
+
+	/**
+	 * @param interning
+	 *          Whether repeated strings are written once and then referenced
+	 */
+	public ScoreflexJobCodec(boolean interning) {
+		mInterning = interning;
+	}
+
+	/**
+	 * Writes the frames adding a job: the definitions of the strings it
+	 * interns followed by the job itself.
+	 *
+	 * @param out
+	 * @param id
+	 *          The job id, stored once even if the job also holds it
+	 * @param job
+	 * @throws IOException
+	 */
+	public void writeAdd(OutputStream out, String id, JSONObject job)
+			throws IOException {
+		mFrame.reset();
+		mPayload.reset();
+		writeString(mPayload, id);
+		try {
+			writeObject(mPayload, job, "id");
+		} catch (JSONException e) {
+			throw new IOException("Could not encode job " + id);
+		}
+
+		// Frames defining strings were queued in mFrame while encoding
+		byte[] payload = mPayload.toByteArray();
+		writeFrame(mFrame, FRAME_ADD, payload, payload.length);
+		mFrame.writeTo(out);
+	}
+
+	/**
+	 * Writes the frame removing a job.
+	 *
+	 * @param out
+	 * @param id
+	 * @throws IOException
+	 */
+	public void writeRemove(OutputStream out, String id) throws IOException {
+		mFrame.reset();
+		mPayload.reset();
+		writeString(mPayload, id);
+		byte[] payload = mPayload.toByteArray();
+		writeFrame(mFrame, FRAME_REMOVE, payload, payload.length);
+		mFrame.writeTo(out);
+	}
+
+	/**
+	 * Reads the next job addition or removal.
+	 *
+	 * @param in
+	 * @return The record or null at the end of the stream
+	 * @throws EOFException
+	 *           If the stream ends in the middle of a frame
+	 * @throws IOException
+	 *           If a frame is corrupted
+	 */
+	public Record read(InputStream in) throws IOException {
+		int size = 0;
+		while (true) {
+			int type = in.read();
+			if (-1 == type) {
+				if (0 < size)
+					throw new EOFException();
+				return null;
+			}
+
+			long length = readVarint(in);
+			if (length > MAX_FRAME_LENGTH)
+				throw new IOException("Corrupted job frame length " + length);
+			byte[] payload = new byte[(int) length];
+			readFully(in, payload);
+			byte[] crc = new byte[4];
+			readFully(in, crc);
+			mCrc.reset();
+			mCrc.update(type);
+			mCrc.update(payload);
+			if ((int) mCrc.getValue() != readInt(crc))
+				throw new IOException("Corrupted job frame");
+			size += 1 + getVarintSize(length) + (int) length + 4;
+
+			PayloadReader reader = new PayloadReader(payload);
+			try {
+				switch (type) {
+				case FRAME_STRING:
+					String s = reader.readUTF8((int) length);
+					mStringIndexes.put(s, mStrings.size());
+					mStrings.add(s);
+					continue;
+				case FRAME_ADD:
+				case FRAME_REMOVE:
+					Record record = new Record();
+					record.mType = type;
+					record.mId = reader.readString();
+					if (FRAME_ADD == type) {
+						record.mJob = (JSONObject) reader.readValue();
+						record.mJob.put("id", record.mId);
+					}
+					record.mSize = size;
+					return record;
+				default:
+					throw new IOException("Unknown job frame " + type);
+				}
+			} catch (JSONException e) {
+				throw new IOException("Could not decode job frame");
+			} catch (ClassCastException e) {
+				throw new IOException("Could not decode job frame");
+			}
+		}
+	}
+
+	private void writeFrame(OutputStream out, int type, byte[] payload,
+			int length) throws IOException {
+		mCrc.reset();
+		mCrc.update(type);
+		mCrc.update(payload, 0, length);
+		int crc = (int) mCrc.getValue();
+		out.write(type);
+		writeVarint(out, length);
+		out.write(payload, 0, length);
+		out.write(crc >>> 24);
+		out.write(crc >>> 16);
+		out.write(crc >>> 8);
+		out.write(crc);
+	}
+
+	private void writeValue(OutputStream out, Object value, boolean intern)
+			throws IOException, JSONException {
+		if (null == value || JSONObject.NULL.equals(value)) {
+			out.write(TAG_NULL);
+		} else if (value instanceof Boolean) {
+			out.write(((Boolean) value).booleanValue() ? TAG_TRUE : TAG_FALSE);
+		} else if (value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte) {
+			out.write(TAG_LONG);
+			long l = ((Number) value).longValue();
+			writeVarint(out, (l << 1) ^ (l >> 63));
+		} else if (value instanceof Number) {
+			out.write(TAG_DOUBLE);
+			long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			for (int shift = 56; shift >= 0; shift -= 8)
+				out.write((int) (bits >>> shift));
+		} else if (value instanceof JSONObject) {
+			writeObject(out, (JSONObject) value, null);
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			out.write(TAG_ARRAY);
+			writeVarint(out, array.length());
+			for (int i = 0; i < array.length(); i++)
+				writeValue(out, array.get(i), false);
+		} else if (intern && mInterning) {
+			out.write(TAG_STRING_REF);
+			writeVarint(out, intern(value.toString()));
+		} else {
+			out.write(TAG_STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	private void writeObject(OutputStream out, JSONObject object,
+			String skippedKey) throws IOException, JSONException {
+		int length = object.length();
+		if (null != skippedKey && object.has(skippedKey))
+			length--;
+
+		out.write(TAG_OBJECT);
+		writeVarint(out, length);
+		@SuppressWarnings("unchecked")
+		Iterator<String> keys = object.keys();
+		while (keys.hasNext()) {
+			String key = keys.next();
+			if (key.equals(skippedKey))
+				continue;
+
+			writeValue(out, key, true);
+			writeValue(out, object.get(key), INTERNED_VALUE_KEYS.contains(key));
+		}
+	}
+
+	/**
+	 * Returns the index of an interned string, queuing the frame defining it
+	 * if it is new.
+	 */
+	private int intern(String s) throws IOException {
+		Integer index = mStringIndexes.get(s);
+		if (null != index)
+			return index.intValue();
+
+		byte[] bytes = s.getBytes("UTF-8");
+		writeFrame(mFrame, FRAME_STRING, bytes, bytes.length);
+		mStringIndexes.put(s, mStrings.size());
+		mStrings.add(s);
+		return mStrings.size() - 1;
+	}
+
+	private static void writeString(OutputStream out, String s)
+			throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeVarint(OutputStream out, long value)
+			throws IOException {
+		while (0 != (value & ~0x7FL)) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static int getVarintSize(long value) {
+		int size = 1;
+		while (0 != (value & ~0x7FL)) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (-1 == b)
+				throw new EOFException();
+			value |= (long) (b & 0x7F) << shift;
+			if (0 == (b & 0x80))
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static void readFully(InputStream in, byte[] buffer)
+			throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int read = in.read(buffer, offset, buffer.length - offset);
+			if (-1 == read)
+				throw new EOFException();
+			offset += read;
+		}
+	}
+
+	private static int readInt(byte[] bytes) {
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16)
+				| ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+	}
+
+	/**
+	 * Decodes the values of a frame payload.
+	 */
+	private class PayloadReader {
+		private byte[] mBytes;
+		private int mOffset;
+
+		public PayloadReader(byte[] bytes) {
+			mBytes = bytes;
+		}
+
+		private int readByte() throws IOException {
+			if (mOffset >= mBytes.length)
+				throw new IOException("Truncated job frame");
+			return mBytes[mOffset++] & 0xFF;
+		}
+
+		private long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (0 == (b & 0x80))
+					return value;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		public String readUTF8(int length) throws IOException {
+			if (length < 0 || mOffset + length > mBytes.length)
+				throw new IOException("Truncated job frame");
+			String s = new String(mBytes, mOffset, length, "UTF-8");
+			mOffset += length;
+			return s;
+		}
+
+		public String readString() throws IOException {
+			return readUTF8((int) readVarint());
+		}
+
+		public Object readValue() throws IOException, JSONException {
+			int tag = readByte();
+			switch (tag) {
+			case TAG_NULL:
+				return JSONObject.NULL;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_LONG:
+				long zigzag = readVarint();
+				return Long.valueOf((zigzag >>> 1) ^ -(zigzag & 1));
+			case TAG_DOUBLE:
+				long bits = 0;
+				for (int i = 0; i < 8; i++)
+					bits = (bits << 8) | readByte();
+				return Double.valueOf(Double.longBitsToDouble(bits));
+			case TAG_STRING:
+				return readString();
+			case TAG_STRING_REF:
+				int index = (int) readVarint();
+				if (index < 0 || index >= mStrings.size())
+					throw new IOException("Unknown interned string " + index);
+				return mStrings.get(index);
+			case TAG_OBJECT:
+				JSONObject object = new JSONObject();
+				int length = (int) readVarint();
+				for (int i = 0; i < length; i++) {
+					String key = readValue().toString();
+					object.put(key, readValue());
+				}
+				return object;
+			case TAG_ARRAY:
+				JSONArray array = new JSONArray();
+				int count = (int) readVarint();
+				for (int i = 0; i < count; i++)
+					array.put(readValue());
+				return array;
+			default:
+				throw new IOException("Unknown job value tag " + tag);
+			}
+		}
+	}
+
+}
@@ -19,24 +19,125 @@
 
 package com.scoreflex;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.SharedPreferences;
 import android.util.Log;
 
 /**
- * A simple persistent job queue which saves itself on disk using SharedPreferences
- * and wraps an {@link ArrayBlockingQueue}.
+ * A simple persistent job queue which saves itself on disk using a
+ * {@link ScoreflexJobStore}.
+ *
+ * Jobs are posted to named lanes, each one being a FIFO with a weight. Lanes
+ * are drained with a smooth weighted round robin: a lane with twice the weight
+ * of another one gets twice as many of its jobs taken while both are not
+ * empty, and an empty lane never delays the others.
+ *
+ * Only the head of the queue is held in memory, up to the queue's capacity.
+ * Once it is full, newer jobs are appended to a {@link ScoreflexJobSpill} on
+ * disk and are moved back in memory, in their lane, as the head is drained so
+ * that the memory footprint does not grow with the offline backlog.
+ *
+ * A {@link Compactor} can be set to merge the jobs that make each other
+ * useless, such as several submissions of a score to the same leaderboard.
+ * Only the jobs held in memory are compacted, spilled jobs are compacted as
+ * they are moved back in memory.
+ *
+ * Jobs can either be taken with {@link #nextJob()}, which removes them right
+ * away, or leased with {@link #leaseJob(long)}: a leased job stays in the
+ * store until {@link Job#ack()} is called, and goes back to the head of its
+ * lane if it is not acknowledged before its lease times out, so that a job
+ * is not lost when the process dies while it is being handled. Up to
+ * {@link #setMaxLeases(int) a maximum number} of leases can be outstanding.
+ *
+ * A job can be reposted with a delay, for retries to back off: it then
+ * waits in a delay queue, ordered by the time it becomes eligible again,
+ * before going back to the tail of its lane. The number of attempts and the
+ * time a job becomes eligible are saved with it.
+ *
+ * A job can be given an expiration date, after which it is dropped instead
+ * of being returned by {@link #nextJob()}. Expired jobs are also evicted from
+ * memory, the store and the spill by a periodic pass on the queue's thread,
+ * so that an offline backlog of outdated jobs does not keep growing.
+ *
+ * Posting a job never blocks: producers append it to a lock-free inbox and
+ * the queue's single background thread, which owns persistence, moves the
+ * inbox to the lanes and saves it. {@link Job#getPersistedFuture()} tells
+ * when a posted job actually reached the disk, or that it was dropped because
+ * the queue is full. Reposted jobs go through the inbox too.
+ *
+ * The queue is restored from disk on that same thread, in batches, so that
+ * creating it does not depend on the size of the offline backlog: the
+ * restored jobs can be taken as soon as their batch is in memory, and the
+ * inbox is only moved once the restoration completes.
+ * {@link #getReadyFuture()} tells when it does.
+ *
+ * By default the inbox is moved as soon as a job is posted and every
+ * operation is made durable before returning. When a commit window is set,
+ * the jobs posted and the operations performed during the window are made
+ * durable together by a single write.
+ *
+ * {@link #flush(long)} returns a future telling when every job posted before
+ * the call left the queue, acknowledged, taken, merged or dropped. Jobs are
+ * numbered in the order they are posted, the numbers being saved with them
+ * and based on the clock so that the jobs restored from disk are older than
+ * the ones posted since. Pending flushes are checked each time a job leaves
+ * the queue rather than polled.
+ *
+ * The queue publishes {@link Stats}: its depth, the bytes it uses on disk
+ * and the age of its oldest job, refreshed on its thread at most once per
+ * {@link #STATS_REFRESH_INTERVAL} after a change, and the histograms of the
+ * delivery latency and attempts of acknowledged jobs. They are read without
+ * taking any lock, or pushed to a {@link StatsListener}.
  *
  *
  */
 class ScoreflexJobQueue {
 	private static int DEFAULT_CAPACITY = 100;
+	private static long DEFAULT_COMMIT_WINDOW = 50;
+	private static long DEFAULT_SPILL_CAPACITY = 2 * 1024 * 1024;
+	private static int RESTORE_BATCH_SIZE = 32;
+	private static long EXPIRY_INTERVAL = 15 * 60 * 1000;
+
+	/**
+	 * The minimum time in milliseconds between two refreshes of the stats.
+	 */
+	public static final long STATS_REFRESH_INTERVAL = 1000;
+
+	/**
+	 * The lane for jobs other jobs are waiting on.
+	 */
+	public static final String LANE_HIGH = "high";
+
+	/**
+	 * The lane used when none is specified.
+	 */
+	public static final String LANE_DEFAULT = "default";
+
+	/**
+	 * The lane for jobs that can wait.
+	 */
+	public static final String LANE_LOW = "low";
 
 	/**
 	 * Queued objects.
@@ -48,131 +149,1384 @@ class ScoreflexJobQueue {
 
 		public JSONObject getJobDescription();
 
+		public String getLane();
+
+		/**
+		 * @return The time, in milliseconds since the epoch, after which the job
+		 *         is dropped, 0 if it never expires
+		 */
+		public long getExpirationDate();
+
+		/**
+		 * @return The number of times the job was reposted
+		 */
+		public int getAttempts();
+
+		/**
+		 * Puts the job back at the tail of its lane, releasing its lease if it
+		 * is leased.
+		 */
 		public void repost();
+
+		/**
+		 * Puts the job back at the tail of its lane once the given delay
+		 * elapsed, releasing its lease if it is leased.
+		 *
+		 * @param delay
+		 *          The delay in milliseconds
+		 */
+		public void repostAfter(long delay);
+
+		/**
+		 * Removes a leased job from the queue once it has been handled.
+		 */
+		public void ack();
+
+		/**
+		 * @return A future completed with true once the job has been durably
+		 *         saved, false if it could not be saved
+		 */
+		public Future<Boolean> getPersistedFuture();
+	}
+
+	/**
+	 * Merges queued jobs that supersede each other.
+	 *
+	 *
+	 */
+	public interface Compactor {
+		/**
+		 * @param jobDescription
+		 * @return A key shared by the jobs that can replace each other, null if
+		 *         the job cannot be compacted
+		 */
+		public String getCompactionKey(JSONObject jobDescription);
+
+		/**
+		 * Called for two jobs sharing the same compaction key.
+		 *
+		 * @param posted
+		 *          The description of the job being queued
+		 * @param queued
+		 *          The description of the job already in the queue
+		 * @return true if the posted job replaces the queued one, false if the
+		 *         posted job is dropped
+		 */
+		public boolean supersedes(JSONObject posted, JSONObject queued);
+	}
+
+	/**
+	 * Receives the stats of a queue when they change.
+	 *
+	 *
+	 */
+	public interface StatsListener {
+		/**
+		 * Called on the queue's thread, at most once per
+		 * {@link ScoreflexJobQueue#STATS_REFRESH_INTERVAL}. It must not block.
+		 *
+		 * @param stats
+		 */
+		public void onStatsChanged(Stats stats);
+	}
+
+	/**
+	 * A snapshot of the gauges of a queue, along with its live histograms.
+	 *
+	 *
+	 */
+	public static class Stats {
+		private final long mTimestamp;
+		private final int mDepth;
+		private final int mMemoryDepth;
+		private final int mSpilledDepth;
+		private final int mLeasedCount;
+		private final int mDelayedCount;
+		private final long mByteSize;
+		private final long mOldestPostDate;
+		private final ScoreflexHistogram mDeliveryLatency;
+		private final ScoreflexHistogram mDeliveryAttempts;
+
+		protected Stats(long timestamp, int memoryDepth, int spilledDepth,
+				int inboxDepth, int leasedCount, int delayedCount, long byteSize,
+				long oldestPostDate, ScoreflexHistogram deliveryLatency,
+				ScoreflexHistogram deliveryAttempts) {
+			mTimestamp = timestamp;
+			mDepth = memoryDepth + spilledDepth + inboxDepth;
+			mMemoryDepth = memoryDepth;
+			mSpilledDepth = spilledDepth;
+			mLeasedCount = leasedCount;
+			mDelayedCount = delayedCount;
+			mByteSize = byteSize;
+			mOldestPostDate = oldestPostDate;
+			mDeliveryLatency = deliveryLatency;
+			mDeliveryAttempts = deliveryAttempts;
+		}
+
+		/**
+		 * @return The time, in milliseconds since the epoch, the gauges were
+		 *         read at
+		 */
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		/**
+		 * @return The number of jobs in the queue
+		 */
+		public int getDepth() {
+			return mDepth;
+		}
+
+		/**
+		 * @return The number of jobs held in memory, leased and delayed ones
+		 *         included
+		 */
+		public int getMemoryDepth() {
+			return mMemoryDepth;
+		}
+
+		/**
+		 * @return The number of jobs spilled to disk
+		 */
+		public int getSpilledDepth() {
+			return mSpilledDepth;
+		}
+
+		/**
+		 * @return The number of leased jobs
+		 */
+		public int getLeasedCount() {
+			return mLeasedCount;
+		}
+
+		/**
+		 * @return The number of jobs waiting for a retry delay
+		 */
+		public int getDelayedCount() {
+			return mDelayedCount;
+		}
+
+		/**
+		 * @return The approximate number of bytes the queue uses on disk
+		 */
+		public long getByteSize() {
+			return mByteSize;
+		}
+
+		/**
+		 * @return The time in milliseconds since the oldest job was posted, 0 if
+		 *         the queue is empty or the job was posted by a version not
+		 *         dating its jobs
+		 */
+		public long getOldestJobAge() {
+			return 0 == mOldestPostDate ? 0 : Math.max(0,
+					System.currentTimeMillis() - mOldestPostDate);
+		}
+
+		/**
+		 * @return The histogram of the times in milliseconds between the
+		 *         posting and the acknowledgement of jobs
+		 */
+		public ScoreflexHistogram getDeliveryLatency() {
+			return mDeliveryLatency;
+		}
+
+		/**
+		 * @return The histogram of the number of attempts it took to
+		 *         acknowledge jobs
+		 */
+		public ScoreflexHistogram getDeliveryAttempts() {
+			return mDeliveryAttempts;
+		}
 	}
 
-	private static ScoreflexJobQueue sDefaultQueue = new ScoreflexJobQueue(
-			"DefaultScoreflexJobQueue", DEFAULT_CAPACITY);
+	private static ScoreflexJobQueue sDefaultQueue;
 
 	/**
-	 * Returns the default job queue.
+	 * Returns the default job queue, creating it on first call. The queue is
+	 * restored in the background, see {@link #getReadyFuture()}.
 	 * @return
 	 */
-	public static ScoreflexJobQueue getDefaultQueue() {
+	public static synchronized ScoreflexJobQueue getDefaultQueue() {
+		if (null == sDefaultQueue) {
+			sDefaultQueue = new ScoreflexJobQueue("DefaultScoreflexJobQueue",
+					DEFAULT_CAPACITY);
+			sDefaultQueue.setCommitWindow(DEFAULT_COMMIT_WINDOW);
+		}
 		return sDefaultQueue;
 	}
 
 	private String mQueueName;
 	private Object mMutex = new Object();
-	private ArrayBlockingQueue<InternalJob> mQueue;
+	private int mCapacity;
+	private int mSize;
+	private LinkedHashMap<String, InternalJob> mLeases = new LinkedHashMap<String, InternalJob>();
+	private PriorityQueue<InternalJob> mDelayedJobs = new PriorityQueue<InternalJob>(11,
+			new Comparator<InternalJob>() {
+
+				@Override
+				public int compare(InternalJob lhs, InternalJob rhs) {
+					return lhs.mNotBefore < rhs.mNotBefore ? -1
+							: (lhs.mNotBefore == rhs.mNotBefore ? 0 : 1);
+				}
+			});
+	private volatile int mMaxLeases = 1;
+	private LinkedHashMap<String, Lane> mLanes = new LinkedHashMap<String, Lane>();
+	private ScoreflexJobStore mStore;
+	private ScoreflexJobSpill mSpill;
+	private volatile Compactor mCompactor;
+	private HashMap<String, InternalJob> mCompactableJobs = new HashMap<String, InternalJob>();
+	private volatile long mCommitWindow;
+	private ScheduledExecutorService mCommitter;
+	private ScoreflexFuture<Boolean> mPendingCommit;
+	private ScoreflexFuture<Boolean> mBatchCommit;
+	private ScoreflexFuture<Boolean> mReady = new ScoreflexFuture<Boolean>();
+	private ConcurrentLinkedQueue<InternalJob> mInbox = new ConcurrentLinkedQueue<InternalJob>();
+	private AtomicInteger mInboxSize = new AtomicInteger();
+	private AtomicBoolean mDrainScheduled = new AtomicBoolean();
+	private AtomicLong mLastSequence = new AtomicLong();
+	private LinkedList<Flush> mFlushes = new LinkedList<Flush>();
+	private ScoreflexHistogram mDeliveryLatency = new ScoreflexHistogram();
+	private ScoreflexHistogram mDeliveryAttempts = new ScoreflexHistogram();
+	private AtomicReference<Stats> mStats = new AtomicReference<Stats>(new Stats(
+			0, 0, 0, 0, 0, 0, 0, 0, mDeliveryLatency, mDeliveryAttempts));
+	private AtomicBoolean mStatsScheduled = new AtomicBoolean();
+	private volatile StatsListener mStatsListener;
 
 	/**
-	 * Creates a queue with the specified name
+	 * Creates a queue with the specified name, journaled in the application's
+	 * files directory and spilling to disk past its in-memory capacity. Jobs
+	 * saved by earlier versions of the SDK in the SharedPreferences are
+	 * migrated to the journal.
 	 * @param queueName The name of the queue, which determines the queue's storage location
-	 * @param capacity The maximum number of jobs the queue can hold
+	 * @param capacity The maximum number of jobs the queue holds in memory
 	 */
 	public ScoreflexJobQueue(String queueName, int capacity) {
+		this(queueName, capacity, new ScoreflexJournalJobStore(
+				ScoreflexJournalJobStore.getJournalFile(
+						Scoreflex.getApplicationContext(), queueName)),
+				new ScoreflexJobSpill(ScoreflexJobSpill.getSpillFile(
+						Scoreflex.getApplicationContext(), queueName),
+						DEFAULT_SPILL_CAPACITY));
+	}
+
+	/**
+	 * Creates a queue with the specified name, persisted in the given store
+	 * @param queueName The name of the queue
+	 * @param capacity The maximum number of jobs the queue can hold
+	 * @param store The store the queue saves itself to
+	 */
+	public ScoreflexJobQueue(String queueName, int capacity, ScoreflexJobStore store) {
+		this(queueName, capacity, store, null);
+	}
+
+	/**
+	 * Creates a queue with the specified name, persisted in the given store
+	 * and spill
+	 * @param queueName The name of the queue
+	 * @param capacity The maximum number of jobs the queue holds in memory
+	 * @param store The store the queue saves its in-memory jobs to
+	 * @param spill The spill receiving jobs past the in-memory capacity, null to reject them
+	 */
+	public ScoreflexJobQueue(String queueName, int capacity,
+			ScoreflexJobStore store, ScoreflexJobSpill spill) {
 		mQueueName = queueName;
-		mQueue = new ArrayBlockingQueue<ScoreflexJobQueue.InternalJob>(capacity);
-		restore();
+		mCapacity = capacity;
+		mStore = store;
+		mSpill = spill;
+		setLaneWeight(LANE_HIGH, 8);
+		setLaneWeight(LANE_DEFAULT, 4);
+		setLaneWeight(LANE_LOW, 1);
+		mCommitter = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ScoreflexJobQueue-" + mQueueName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// Runs before any inbox drain, the committer having a single thread
+		mCommitter.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				boolean restored = false;
+				try {
+					restore();
+					restored = true;
+				} finally {
+					if (!restored)
+						Log.e("Scoreflex", "Could not restore job queue");
+					mReady.set(restored);
+				}
+			}
+		});
+
+		mCommitter.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				expire();
+			}
+		}, EXPIRY_INTERVAL, EXPIRY_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return A future completed with true once the jobs saved on disk have
+	 *         been restored, false if they could not be
+	 */
+	public Future<Boolean> getReadyFuture() {
+		return mReady;
+	}
+
+	/**
+	 * Sets the weight of a lane, creating the lane if needed. Jobs posted to an
+	 * unknown lane go to {@link #LANE_DEFAULT}.
+	 * @param lane The lane name
+	 * @param weight The lane weight, at least 1
+	 */
+	public synchronized void setLaneWeight(String lane, int weight) {
+		Lane existing = mLanes.get(lane);
+		if (null == existing)
+			mLanes.put(lane, new Lane(Math.max(1, weight)));
+		else
+			existing.mWeight = Math.max(1, weight);
+	}
+
+	/**
+	 * Sets the compactor merging the jobs of this queue. The jobs already in
+	 * memory are compacted by the queue thread, once restored, so that the
+	 * caller never waits for the queue to be read from disk.
+	 * @param compactor The compactor, null to stop compacting jobs
+	 */
+	public void setCompactor(Compactor compactor) {
+		mCompactor = compactor;
+		mCommitter.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				compactAll();
+			}
+		});
+	}
+
+	/**
+	 * Compacts the jobs in memory with the current compactor.
+	 */
+	private synchronized void compactAll() {
+		mCompactableJobs.clear();
+		for (Lane lane : mLanes.values()) {
+			Iterator<InternalJob> it = lane.mJobs.iterator();
+			while (it.hasNext()) {
+				InternalJob job = it.next();
+				if (null == compact(job)) {
+					index(job);
+					continue;
+				}
+
+				it.remove();
+				mSize--;
+				synchronized(mMutex) {
+					mStore.remove(job.getId());
+					commit();
+				}
+			}
+		}
+		Iterator<InternalJob> it = mDelayedJobs.iterator();
+		while (it.hasNext()) {
+			InternalJob job = it.next();
+			if (null == compact(job)) {
+				index(job);
+				continue;
+			}
+
+			it.remove();
+			synchronized(mMutex) {
+				mStore.remove(job.getId());
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of jobs leased at the same time,
+	 * {@link #leaseJob(long)} blocking while it is reached. Waiting leasers
+	 * are woken by the queue thread, the caller never waiting for the queue
+	 * to be read from disk.
+	 * @param maxLeases The maximum number of leases, at least 1
+	 */
+	public void setMaxLeases(int maxLeases) {
+		mMaxLeases = Math.max(1, maxLeases);
+		mCommitter.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized(ScoreflexJobQueue.this) {
+					ScoreflexJobQueue.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets the duration during which posted jobs and operations are gathered
+	 * before being made durable together.
+	 * @param commitWindow The window in milliseconds, 0 to make every operation durable on its own
+	 */
+	public void setCommitWindow(long commitWindow) {
+		mCommitWindow = commitWindow;
 	}
 
 	/**
-	 * Creates and stores a job in the queue based on the provided description
+	 * Creates and stores a job in the default lane based on the provided description
 	 * @param jobDescription
-	 * @return The stored job or null if something went wrong (the queue is full for instance)
+	 * @return The posted job
 	 */
+	public Job postJobWithDescription(JSONObject jobDescription) {
+		return postJobWithDescription(jobDescription, LANE_DEFAULT);
+	}
 
-	public synchronized Job postJobWithDescription(JSONObject jobDescription) {
-		if (0 == mQueue.remainingCapacity())
-			return null;
+	/**
+	 * Creates and stores a job in the given lane based on the provided
+	 * description. This never blocks, the job is queued and saved by the
+	 * queue's thread.
+	 * @param jobDescription
+	 * @param lane The lane name
+	 * @return The posted job, whose persisted future completes with false if something went wrong (the queue is full for instance)
+	 */
+	public Job postJobWithDescription(JSONObject jobDescription, String lane) {
+		return postJobWithDescription(jobDescription, lane, 0);
+	}
 
+	/**
+	 * Creates and stores a job in the given lane based on the provided
+	 * description, dropped if it is still queued after the given date. This
+	 * never blocks, the job is queued and saved by the queue's thread.
+	 * @param jobDescription
+	 * @param lane The lane name
+	 * @param expirationDate The time, in milliseconds since the epoch, after which the job is dropped, 0 if it never expires
+	 * @return The posted job, whose persisted future completes with false if something went wrong (the queue is full for instance)
+	 */
+	public Job postJobWithDescription(JSONObject jobDescription, String lane,
+			long expirationDate) {
 		String jobId = UUID.randomUUID().toString();
-		InternalJob job = new InternalJob(jobId, jobDescription);
-		mQueue.add(job);
-		save();
+		InternalJob job = new InternalJob(jobId, jobDescription, lane);
+		job.mExpirationDate = expirationDate;
+		job.mSequence = nextSequence();
+		post(job);
 		return job;
 	}
 
 	/**
-	 * This call blocks until the next job is available.
+	 * Appends a job to the inbox and makes sure the inbox gets drained.
+	 */
+	private void post(InternalJob job) {
+		job.mPersisted = new ScoreflexFuture<Boolean>();
+		mInbox.offer(job);
+		mInboxSize.incrementAndGet();
+		invalidateStats();
+		if (mDrainScheduled.compareAndSet(false, true)) {
+			mCommitter.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					drain();
+				}
+			}, mCommitWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns a sequence number greater than the ones of the jobs posted
+	 * before, and than the ones saved by an earlier run as long as the clock
+	 * did not go backwards.
+	 */
+	private long nextSequence() {
+		while (true) {
+			long last = mLastSequence.get();
+			long sequence = Math.max(last + 1, System.currentTimeMillis() * 1000);
+			if (mLastSequence.compareAndSet(last, sequence))
+				return sequence;
+		}
+	}
+
+	/**
+	 * Returns a future completed once every job posted before the call left
+	 * the queue, or once the given timeout elapsed. Jobs posted after the call
+	 * are not waited for.
+	 * @param timeout The maximum time to wait in milliseconds
+	 * @return A future completed with true once the jobs left the queue, false if the timeout elapsed first
+	 */
+	public Future<Boolean> flush(long timeout) {
+		final Flush flush;
+		synchronized(this) {
+			flush = new Flush(mLastSequence.get());
+			mFlushes.add(flush);
+		}
+
+		// Checked once the queue is restored, the committer having a single
+		// thread
+		mCommitter.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized(ScoreflexJobQueue.this) {
+					completeFlushes();
+				}
+			}
+		});
+		mCommitter.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized(ScoreflexJobQueue.this) {
+					mFlushes.remove(flush);
+				}
+				flush.mFuture.set(false);
+			}
+		}, Math.max(0, timeout), TimeUnit.MILLISECONDS);
+		return flush.mFuture;
+	}
+
+	/**
+	 * Called after jobs left the queue, or moved within it, while holding the
+	 * queue's lock.
+	 */
+	private void onJobsChanged() {
+		completeFlushes();
+		invalidateStats();
+	}
+
+	/**
+	 * @return The last stats of the queue, read without locking
+	 */
+	public Stats getStats() {
+		return mStats.get();
+	}
+
+	/**
+	 * Sets the listener receiving the stats when they change.
+	 * @param listener The listener, null to stop receiving them
+	 */
+	public void setStatsListener(StatsListener listener) {
+		mStatsListener = listener;
+		invalidateStats();
+	}
+
+	/**
+	 * Schedules a refresh of the stats on the queue's thread, unless one is
+	 * already scheduled.
+	 */
+	private void invalidateStats() {
+		if (mStatsScheduled.compareAndSet(false, true)) {
+			mCommitter.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					refreshStats();
+				}
+			}, STATS_REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Reads the gauges of the queue and publishes them. Only called from the
+	 * committer thread.
+	 */
+	private void refreshStats() {
+		mStatsScheduled.set(false);
+		Stats stats;
+		synchronized(this) {
+			long oldest = getOldestSequence();
+			long byteSize;
+			synchronized(mMutex) {
+				byteSize = mStore.getByteSize()
+						+ (null != mSpill ? mSpill.getByteSize() : 0);
+			}
+			stats = new Stats(System.currentTimeMillis(), getMemorySize(),
+					null != mSpill ? mSpill.size() : 0, mInboxSize.get(),
+					mLeases.size(), mDelayedJobs.size(), byteSize,
+					Long.MAX_VALUE == oldest ? 0 : oldest / 1000, mDeliveryLatency,
+					mDeliveryAttempts);
+		}
+		mStats.set(stats);
+
+		StatsListener listener = mStatsListener;
+		if (null != listener)
+			listener.onStatsChanged(stats);
+	}
+
+	/**
+	 * Completes the pending flushes none of whose jobs are left in the queue.
+	 * Must be called while holding the queue's lock, after jobs left it.
+	 */
+	private void completeFlushes() {
+		if (mFlushes.isEmpty() || !mReady.isDone())
+			return;
+
+		long oldest = getOldestSequence();
+		Iterator<Flush> it = mFlushes.iterator();
+		while (it.hasNext()) {
+			Flush flush = it.next();
+			if (flush.mSequence < oldest) {
+				it.remove();
+				flush.mFuture.set(true);
+			}
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the oldest job in the queue. The spill
+	 * being a FIFO, its oldest job is at its head. Must be called while
+	 * holding the queue's lock.
+	 * @return The sequence number, Long.MAX_VALUE if the queue is empty
+	 */
+	private long getOldestSequence() {
+		long oldest = Long.MAX_VALUE;
+		for (Lane lane : mLanes.values())
+			for (InternalJob job : lane.mJobs)
+				oldest = Math.min(oldest, job.mSequence);
+		for (InternalJob job : mDelayedJobs)
+			oldest = Math.min(oldest, job.mSequence);
+		for (InternalJob job : mLeases.values())
+			oldest = Math.min(oldest, job.mSequence);
+		for (InternalJob job : mInbox)
+			oldest = Math.min(oldest, job.mSequence);
+
+		if (null != mSpill && !mSpill.isEmpty()) {
+			synchronized(mMutex) {
+				List<JSONObject> head = mSpill.peek(1);
+				if (!head.isEmpty())
+					oldest = Math.min(oldest, head.get(0).optLong("sequence", 0));
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Moves the jobs of the inbox to the queue and makes them durable with a
+	 * single write. Only called from the committer thread.
+	 */
+	private void drain() {
+		mDrainScheduled.set(false);
+		LinkedList<ScoreflexFuture<Boolean>> queued = new LinkedList<ScoreflexFuture<Boolean>>();
+		ScoreflexFuture<Boolean> batch = new ScoreflexFuture<Boolean>();
+		boolean succeeded;
+		synchronized(this) {
+			synchronized(mMutex) {
+				mBatchCommit = batch;
+				InternalJob job;
+				while (null != (job = mInbox.poll())) {
+					mInboxSize.decrementAndGet();
+					ScoreflexFuture<Boolean> persisted = job.mPersisted;
+					InternalJob holder = enqueue(job);
+					job.mPersisted = persisted;
+					if (null == holder) {
+						Log.e("Scoreflex", "Job queue is full, dropping job " + job.mId);
+						persisted.set(false);
+					} else {
+						queued.add(persisted);
+					}
+				}
+				mBatchCommit = null;
+				succeeded = sync();
+			}
+			onJobsChanged();
+		}
+		batch.set(succeeded);
+		for (ScoreflexFuture<Boolean> persisted : queued)
+			persisted.set(succeeded);
+	}
+
+	/**
+	 * @return The number of jobs held in memory, leased, spilled to disk or
+	 *         waiting in the inbox
+	 */
+	public synchronized int size() {
+		return getMemorySize() + (null != mSpill ? mSpill.size() : 0)
+				+ mInboxSize.get();
+	}
+
+	/**
+	 * @return The number of jobs held in memory, queued, delayed or leased
+	 */
+	private int getMemorySize() {
+		return mSize + mLeases.size() + mDelayedJobs.size();
+	}
+
+	/**
+	 * This call blocks until the next job that has not expired is available.
 	 * @return
 	 * @throws InterruptedException
 	 */
-	public Job nextJob() throws InterruptedException {
-		InternalJob job = mQueue.take();
-		save();
-		return job;
+	public synchronized Job nextJob() throws InterruptedException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			long nextEligible = promoteDelayedJobs(now);
+			if (0 == mSize) {
+				await(now, nextEligible);
+				continue;
+			}
+
+			InternalJob job = nextLane().mJobs.removeFirst();
+			mSize--;
+			unindex(job);
+			synchronized(mMutex) {
+				mStore.remove(job.getId());
+				commit();
+			}
+			refill();
+			onJobsChanged();
+			if (!job.isExpired(System.currentTimeMillis()))
+				return job;
+
+			Log.i("Scoreflex", "Dropping expired job " + job.getId());
+		}
+	}
+
+	/**
+	 * Leases the next job that has not expired, blocking until one is
+	 * available and less than the maximum number of leases are outstanding.
+	 * The job is only removed from the queue by {@link Job#ack()}.
+	 * @param leaseTimeout The time in milliseconds after which the job goes back in the queue if not acknowledged
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public synchronized Job leaseJob(long leaseTimeout) throws InterruptedException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			long nextTimeout = releaseTimedOutLeases(now);
+			long nextEligible = promoteDelayedJobs(now);
+			InternalJob job = tryLease(now, leaseTimeout);
+			if (null != job)
+				return job;
+
+			if (0 == nextTimeout || (0 != nextEligible && nextEligible < nextTimeout))
+				nextTimeout = nextEligible;
+			await(now, nextTimeout);
+		}
+	}
+
+	/**
+	 * Leases up to the given number of jobs, blocking until at least one is
+	 * available as {@link #leaseJob(long)} does.
+	 * @param max The maximum number of jobs to lease
+	 * @param leaseTimeout The time in milliseconds after which a job goes back in the queue if not acknowledged
+	 * @return The leased jobs, in the order they would have been leased one by one
+	 * @throws InterruptedException
+	 */
+	public synchronized List<Job> leaseJobs(int max, long leaseTimeout)
+			throws InterruptedException {
+		List<Job> jobs = new ArrayList<Job>();
+		jobs.add(leaseJob(leaseTimeout));
+		long now = System.currentTimeMillis();
+		InternalJob job;
+		while (jobs.size() < max && null != (job = tryLease(now, leaseTimeout)))
+			jobs.add(job);
+		return jobs;
+	}
+
+	/**
+	 * Leases the next job that has not expired, if any is available and less
+	 * than the maximum number of leases are outstanding. Must be called while
+	 * holding the queue's lock.
+	 * @return The leased job, null if none could be leased
+	 */
+	private InternalJob tryLease(long now, long leaseTimeout) {
+		while (0 < mSize && mLeases.size() < mMaxLeases) {
+			InternalJob job = nextLane().mJobs.removeFirst();
+			mSize--;
+			unindex(job);
+			if (job.isExpired(now)) {
+				Log.i("Scoreflex", "Dropping expired job " + job.getId());
+				synchronized(mMutex) {
+					mStore.remove(job.getId());
+					commit();
+				}
+				refill();
+				onJobsChanged();
+				continue;
+			}
+
+			job.mLeaseTimeout = now + leaseTimeout;
+			job.mLeasedDescription = job.mJobDescription;
+			mLeases.put(job.getId(), job);
+			invalidateStats();
+			return job;
+		}
+		return null;
+	}
+
+	/**
+	 * Makes the delayed jobs eligible right away, when the reason they were
+	 * delayed for is known to be gone.
+	 */
+	public synchronized void retryDelayedJobs() {
+		if (mDelayedJobs.isEmpty())
+			return;
+
+		InternalJob job;
+		while (null != (job = mDelayedJobs.poll())) {
+			job.mNotBefore = 0;
+			promote(job);
+		}
+		onJobsChanged();
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the queue to change or for the given time. Must be called
+	 * while holding the queue's lock.
+	 * @param deadline The time to wake up at, 0 to only wait for a change
+	 */
+	private void await(long now, long deadline) throws InterruptedException {
+		if (0 == deadline)
+			wait();
+		else
+			wait(Math.max(1, deadline - now));
+	}
+
+	/**
+	 * Moves the delayed jobs that became eligible to the tail of their lane.
+	 * Must be called while holding the queue's lock.
+	 * @return The time the next delayed job becomes eligible, 0 if there is none
+	 */
+	private long promoteDelayedJobs(long now) {
+		InternalJob job;
+		while (null != (job = mDelayedJobs.peek())) {
+			if (job.mNotBefore > now)
+				return job.mNotBefore;
+
+			mDelayedJobs.poll();
+			promote(job);
+		}
+		return 0;
+	}
+
+	/**
+	 * Moves a job taken from the delay queue to the tail of its lane. Delayed
+	 * jobs count against the in-memory capacity like the ones in the lanes, so
+	 * the move never exceeds it. Must be called while holding the queue's
+	 * lock.
+	 */
+	private void promote(InternalJob job) {
+		getLane(job).mJobs.addLast(job);
+		mSize++;
+	}
+
+	/**
+	 * Puts the jobs whose lease timed out back at the head of their lane. Must
+	 * be called while holding the queue's lock.
+	 * @return The time the next outstanding lease times out, 0 if there is none
+	 */
+	private long releaseTimedOutLeases(long now) {
+		long nextTimeout = 0;
+		Iterator<InternalJob> it = mLeases.values().iterator();
+		while (it.hasNext()) {
+			InternalJob job = it.next();
+			if (job.mLeaseTimeout > now) {
+				if (0 == nextTimeout || job.mLeaseTimeout < nextTimeout)
+					nextTimeout = job.mLeaseTimeout;
+				continue;
+			}
+
+			Log.i("Scoreflex", "Lease of job " + job.getId() + " timed out");
+			it.remove();
+			getLane(job).mJobs.addFirst(job);
+			mSize++;
+			index(job);
+		}
+		return nextTimeout;
+	}
+
+	/**
+	 * Removes a handled job, leased or back in its lane after its lease timed
+	 * out.
+	 */
+	private synchronized void ack(InternalJob job) {
+		if (null == mLeases.remove(job.getId())) {
+			// Merged with a newer job after its lease timed out, which still
+			// has to be handled
+			if (job.mJobDescription != job.mLeasedDescription
+					|| !getLane(job).mJobs.remove(job))
+				return;
+
+			mSize--;
+			unindex(job);
+		}
+
+		job.mAcked = true;
+		if (0 != job.mSequence)
+			mDeliveryLatency.record(System.currentTimeMillis() - job.mSequence / 1000);
+		mDeliveryAttempts.record(job.mAttempts + 1);
+		synchronized(mMutex) {
+			mStore.remove(job.getId());
+			commit();
+		}
+		refill();
+		onJobsChanged();
+		notifyAll();
+	}
+
+	/**
+	 * Puts a job back at the tail of its lane, right away or after a delay,
+	 * and saves its new retry state. A job taken with {@link #nextJob()} is
+	 * posted again.
+	 */
+	private synchronized void repost(InternalJob job, long delay) {
+		// Handled by another lease after this one timed out
+		if (job.mAcked)
+			return;
+
+		boolean leased = null != mLeases.remove(job.getId());
+
+		// Already put back when its lease timed out
+		if (!leased && getLane(job).mJobs.contains(job))
+			return;
+
+		job.mAttempts++;
+		job.mNotBefore = delay > 0 ? System.currentTimeMillis() + delay : 0;
+		if (!leased) {
+			post(job);
+			return;
+		}
+
+		save(job);
+		push(job);
+		invalidateStats();
+	}
+
+	/**
+	 * Evicts the expired jobs from memory, the store and the spill in a single
+	 * pass.
+	 * @return The number of evicted jobs
+	 */
+	protected synchronized int expire() {
+		final long now = System.currentTimeMillis();
+		int expired = 0;
+		synchronized(mMutex) {
+			for (Lane lane : mLanes.values()) {
+				Iterator<InternalJob> it = lane.mJobs.iterator();
+				while (it.hasNext()) {
+					InternalJob job = it.next();
+					if (!job.isExpired(now))
+						continue;
+
+					it.remove();
+					mSize--;
+					unindex(job);
+					mStore.remove(job.getId());
+					expired++;
+				}
+			}
+			Iterator<InternalJob> it = mDelayedJobs.iterator();
+			while (it.hasNext()) {
+				InternalJob job = it.next();
+				if (!job.isExpired(now))
+					continue;
+
+				it.remove();
+				unindex(job);
+				mStore.remove(job.getId());
+				expired++;
+			}
+
+			if (null != mSpill) {
+				expired += mSpill.purge(new ScoreflexJobSpill.Filter() {
+
+					@Override
+					public boolean accept(JSONObject json) {
+						long expirationDate = json.optLong("expirationDate", 0);
+						return 0 == expirationDate || expirationDate > now;
+					}
+				});
+			}
+
+			if (0 < expired)
+				commit();
+		}
+		refill();
+		onJobsChanged();
+		if (0 < expired)
+			Log.i("Scoreflex", "Evicted " + expired + " expired jobs");
+		return expired;
+	}
+
+	/**
+	 * Picks the lane to take a job from, using a smooth weighted round robin
+	 * over the non-empty lanes. Must be called while holding the queue's lock
+	 * with at least one job in memory.
+	 */
+	private Lane nextLane() {
+		Lane selected = null;
+		int totalWeight = 0;
+		for (Lane lane : mLanes.values()) {
+			if (lane.mJobs.isEmpty())
+				continue;
+
+			lane.mCurrentWeight += lane.mWeight;
+			totalWeight += lane.mWeight;
+			if (null == selected || lane.mCurrentWeight > selected.mCurrentWeight)
+				selected = lane;
+		}
+		selected.mCurrentWeight -= totalWeight;
+		return selected;
+	}
+
+	private Lane getLane(InternalJob job) {
+		Lane lane = mLanes.get(job.mLane);
+		return null != lane ? lane : mLanes.get(LANE_DEFAULT);
+	}
+
+	/**
+	 * Adds a job at the tail of its lane in memory, or to the delay queue if
+	 * it is not eligible yet. Must be called while holding the queue's lock.
+	 */
+	private void push(InternalJob job) {
+		if (job.mNotBefore > System.currentTimeMillis()) {
+			mDelayedJobs.add(job);
+		} else {
+			getLane(job).mJobs.addLast(job);
+			mSize++;
+		}
+		index(job);
+		notifyAll();
+	}
+
+	/**
+	 * Makes an in-memory job the one other jobs with the same compaction key
+	 * are merged into. Must be called while holding the queue's lock.
+	 */
+	private void index(InternalJob job) {
+		if (null != job.mCompactionKey)
+			mCompactableJobs.put(job.mCompactionKey, job);
+	}
+
+	/**
+	 * Removes a job leaving memory from the compaction index. Must be called
+	 * while holding the queue's lock.
+	 */
+	private void unindex(InternalJob job) {
+		if (null != job.mCompactionKey
+				&& job == mCompactableJobs.get(job.mCompactionKey))
+			mCompactableJobs.remove(job.mCompactionKey);
 	}
 
-	private String getPrefName() {
-		return String.format("_scoreflex_job_queue_%s", mQueueName);
+	/**
+	 * Merges a job into the in-memory job sharing its compaction key, if any.
+	 * Must be called while holding the queue's lock.
+	 * @return The in-memory job the given job was merged into, null if it was not merged
+	 */
+	private InternalJob compact(InternalJob job) {
+		job.mCompactionKey = null != mCompactor ? mCompactor
+				.getCompactionKey(job.mJobDescription) : null;
+		if (null == job.mCompactionKey)
+			return null;
+
+		InternalJob queued = mCompactableJobs.get(job.mCompactionKey);
+		if (null == queued || queued == job)
+			return null;
+
+		boolean changed = false;
+		if (mCompactor.supersedes(job.mJobDescription, queued.mJobDescription)) {
+			queued.mJobDescription = job.mJobDescription;
+			changed = true;
+		}
+
+		// The merged job lives as long as the longest lived of the two
+		if (0 != queued.mExpirationDate
+				&& (0 == job.mExpirationDate || job.mExpirationDate > queued.mExpirationDate)) {
+			queued.mExpirationDate = job.mExpirationDate;
+			changed = true;
+		}
+
+		if (changed)
+			save(queued);
+		return queued;
 	}
 
 	/**
-	 * Saves the job queue on disk.
+	 * Appends a job at the tail of the queue, in memory if there is room and
+	 * no job is waiting on disk, in the spill otherwise. A job superseded by
+	 * or superseding a job in memory is merged into it instead. Must be called
+	 * while holding the queue's lock.
+	 * @return The job holding the given job's description, null if the job could not be queued
 	 */
-	protected void save() {
+	private InternalJob enqueue(InternalJob job) {
+		InternalJob compacted = compact(job);
+		if (null != compacted)
+			return compacted;
+
+		if (getMemorySize() < mCapacity && (null == mSpill || mSpill.isEmpty())) {
+			save(job);
+			push(job);
+			return job;
+		}
+
+		if (null == mSpill)
+			return null;
+
 		synchronized(mMutex) {
 			try {
-				InternalJob jobs[] = new InternalJob[mQueue.size()];
-				mQueue.toArray(jobs);
-				JSONArray jsonArray = new JSONArray();
-				for (int i = 0; i < jobs.length; i++) {
-					jsonArray.put(jobs[i].toJSON());
+				if (!mSpill.append(job.toJSON()))
+					return null;
+				job.mPersisted = commit();
+				return job;
+			} catch (JSONException e) {
+				Log.e("Scoreflex", "Could not spill job", e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Moves spilled jobs back in memory as long as there is room. Must be
+	 * called while holding the queue's lock.
+	 */
+	private void refill() {
+		if (null == mSpill || mSpill.isEmpty() || getMemorySize() >= mCapacity)
+			return;
+
+		synchronized(mMutex) {
+			List<JSONObject> jobs = mSpill.peek(mCapacity - getMemorySize());
+			for (JSONObject json : jobs) {
+				try {
+					InternalJob job = new InternalJob(json);
+
+					// Already moved by a run interrupted before consuming the spill
+					if (getLane(job).mJobs.contains(job))
+						continue;
+
+					if (job.isExpired(System.currentTimeMillis()))
+						continue;
+
+					if (null != compact(job))
+						continue;
+
+					mStore.add(job.getId(), json);
+					push(job);
+				} catch (JSONException e) {
+					Log.e("Scoreflex", "Could not restore spilled job");
 				}
+			}
 
-				SharedPreferences prefs = Scoreflex.getSharedPreferences();
-				SharedPreferences.Editor editor = prefs.edit();
-				editor.putString(getPrefName(), jsonArray.toString());
-				editor.commit();
+			// Only forget the spilled copies once the store holds them
+			if (mStore.sync())
+				mSpill.consume();
+		}
+	}
 
+	/**
+	 * Saves a queued job on disk.
+	 */
+	protected void save(InternalJob job) {
+		synchronized(mMutex) {
+			try {
+				mStore.add(job.getId(), job.toJSON());
+				job.mPersisted = commit();
 			} catch (JSONException e) {
-				Log.e("Scoreflex", "Could not save job queue", e);
+				Log.e("Scoreflex", "Could not save job", e);
+				job.mPersisted = ScoreflexFuture.completed(false);
 			}
+		}
+	}
+
+	/**
+	 * Makes the pending store operations durable, right away or at the end of
+	 * the current commit window, or with the inbox being drained. Must be
+	 * called while holding mMutex.
+	 * @return A future completed when the operations are durable
+	 */
+	private ScoreflexFuture<Boolean> commit() {
+		if (null != mBatchCommit)
+			return mBatchCommit;
+
+		if (mCommitWindow <= 0)
+			return ScoreflexFuture.completed(sync());
+
+		if (null == mPendingCommit) {
+			mPendingCommit = new ScoreflexFuture<Boolean>();
+			mCommitter.schedule(new Runnable() {
 
+				@Override
+				public void run() {
+					ScoreflexFuture<Boolean> commit;
+					boolean succeeded;
+					synchronized(mMutex) {
+						commit = mPendingCommit;
+						mPendingCommit = null;
+						succeeded = sync();
+					}
+					commit.set(succeeded);
+				}
+			}, mCommitWindow, TimeUnit.MILLISECONDS);
 		}
+		return mPendingCommit;
+	}
+
+	private boolean sync() {
+		boolean succeeded = mStore.sync();
+		if (null != mSpill)
+			succeeded = mSpill.sync() && succeeded;
+		return succeeded;
 	}
 
 	/**
-	 * Restores the job queue from its on-disk version.
+	 * Restores the job queue from its on-disk version, one batch of jobs at a
+	 * time so that they can be taken while the next ones are restored.
 	 */
 	protected void restore() {
+		List<JSONObject> jobs;
+		long restoredSequence = 0;
 		synchronized(mMutex) {
-			try {
-				SharedPreferences prefs = Scoreflex.getSharedPreferences();
-				String jsonString = prefs.getString(getPrefName(), "[]");
-				JSONArray jsonArray = new JSONArray(jsonString);
+			if (!(mStore instanceof ScoreflexPreferencesJobStore))
+				ScoreflexPreferencesJobStore.migrate(mQueueName, mStore);
+
+			jobs = mStore.restore();
+			for (JSONObject json : jobs)
+				restoredSequence = Math.max(restoredSequence, json.optLong("sequence", 0));
+			if (null != mSpill)
+				restoredSequence = Math.max(restoredSequence, mSpill.getLastSequence());
+		}
 
-				mQueue.clear();
+		synchronized(this) {
+			for (Lane lane : mLanes.values())
+				lane.mJobs.clear();
+			mCompactableJobs.clear();
+			mLeases.clear();
+			mDelayedJobs.clear();
+			mSize = 0;
+
+			// The restored jobs were posted before any flush of this run
+			while (true) {
+				long last = mLastSequence.get();
+				if (last >= restoredSequence
+						|| mLastSequence.compareAndSet(last, restoredSequence))
+					break;
+			}
+			for (Flush flush : mFlushes)
+				flush.mSequence = Math.max(flush.mSequence, restoredSequence);
+		}
 
-				for (int i = 0; i < jsonArray.length(); i++) {
-					mQueue.add(new InternalJob(jsonArray.getJSONObject(i)));
+		for (int start = 0; start < jobs.size(); start += RESTORE_BATCH_SIZE) {
+			List<JSONObject> batch = jobs.subList(start,
+					Math.min(jobs.size(), start + RESTORE_BATCH_SIZE));
+			synchronized(this) {
+				synchronized(mMutex) {
+					for (JSONObject json : batch)
+						restore(json);
 				}
-			} catch (JSONException e) {
-				Log.e("Scoreflex", "Could not restore job queue");
 			}
 		}
+
+		synchronized(this) {
+			synchronized(mMutex) {
+				sync();
+			}
+			refill();
+		}
+		invalidateStats();
+	}
+
+	/**
+	 * Puts back a job read from the store. Must be called while holding the
+	 * queue's lock and mMutex.
+	 */
+	private void restore(JSONObject json) {
+		try {
+			InternalJob job = new InternalJob(json);
+			if (job.isExpired(System.currentTimeMillis())
+					|| null != compact(job)) {
+				mStore.remove(job.getId());
+				return;
+			}
+
+			if (getMemorySize() < mCapacity) {
+				push(job);
+				return;
+			}
+
+			// More jobs than the in-memory capacity, move them to the spill
+			if (null != mSpill && mSpill.append(json))
+				mStore.remove(job.getId());
+		} catch (JSONException e) {
+			Log.e("Scoreflex", "Could not restore job");
+		}
+	}
+
+	/**
+	 * A pending {@link #flush(long)}, waiting for the jobs numbered up to its
+	 * sequence number.
+	 */
+	private static class Flush {
+		protected long mSequence;
+		protected ScoreflexFuture<Boolean> mFuture = new ScoreflexFuture<Boolean>();
+
+		public Flush(long sequence) {
+			mSequence = sequence;
+		}
+	}
+
+	/**
+	 * A FIFO of jobs with its weight in the round robin.
+	 */
+	private static class Lane {
+		protected int mWeight;
+		protected int mCurrentWeight;
+		protected LinkedList<InternalJob> mJobs = new LinkedList<InternalJob>();
+
+		public Lane(int weight) {
+			mWeight = weight;
+		}
 	}
 
 	private class InternalJob implements Job {
 		protected String mId;
 		protected JSONObject mJobDescription;
+		protected String mLane;
+		protected String mCompactionKey;
+		protected long mExpirationDate;
+		protected long mLeaseTimeout;
+		protected int mAttempts;
+		protected long mNotBefore;
+		protected long mSequence;
+		protected JSONObject mLeasedDescription;
+		protected boolean mAcked;
+		protected volatile ScoreflexFuture<Boolean> mPersisted;
 
-		public InternalJob(String id, JSONObject description) {
+		public InternalJob(String id, JSONObject description, String lane) {
 			mId = id;
 			mJobDescription = description;
+			mLane = null != lane ? lane : LANE_DEFAULT;
 		}
 
 		public InternalJob(JSONObject json) throws JSONException {
 			mId = json.getString("id");
 			mJobDescription = json.getJSONObject("description");
+			mLane = json.optString("lane", LANE_DEFAULT);
+			mExpirationDate = json.optLong("expirationDate", 0);
+			mAttempts = json.optInt("attempts", 0);
+			mNotBefore = json.optLong("notBefore", 0);
+			mSequence = json.optLong("sequence", 0);
+			mPersisted = ScoreflexFuture.completed(true);
 		}
 
 		public JSONObject toJSON() throws JSONException {
 			JSONObject json = new JSONObject();
 			json.put("id", mId);
 			json.put("description", mJobDescription);
+			json.put("lane", mLane);
+			if (0 != mExpirationDate)
+				json.put("expirationDate", mExpirationDate);
+			if (0 != mAttempts)
+				json.put("attempts", mAttempts);
+			if (0 != mNotBefore)
+				json.put("notBefore", mNotBefore);
+			if (0 != mSequence)
+				json.put("sequence", mSequence);
 			return json;
 		}
 
@@ -184,9 +1538,36 @@ class ScoreflexJobQueue {
 			return mJobDescription;
 		}
 
+		public String getLane() {
+			return mLane;
+		}
+
+		public long getExpirationDate() {
+			return mExpirationDate;
+		}
+
+		public boolean isExpired(long now) {
+			return 0 != mExpirationDate && mExpirationDate <= now;
+		}
+
+		public int getAttempts() {
+			return mAttempts;
+		}
+
 		public void repost() {
-			mQueue.add(this);
-			save();
+			ScoreflexJobQueue.this.repost(this, 0);
+		}
+
+		public void repostAfter(long delay) {
+			ScoreflexJobQueue.this.repost(this, delay);
+		}
+
+		public void ack() {
+			ScoreflexJobQueue.this.ack(this);
+		}
+
+		public Future<Boolean> getPersistedFuture() {
+			return mPersisted;
 		}
 
 		@Override
@@ -0,0 +1,506 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * The disk resident tail of a {@link ScoreflexJobQueue}, holding the jobs
+ * that do not fit in the queue's in-memory window.
+ *
+ * Jobs are appended as self-contained {@link ScoreflexJobCodec} frames after
+ * a 16 bytes header made of a magic, the format version and the offset of the
+ * first unread record. Reading is done in two steps: {@link #peek(int)}
+ * returns the next records and {@link #consume()} moves the read offset past
+ * them once the queue has safely stored them elsewhere. The file is reset
+ * when fully read and rewritten when the consumed head grows larger than the
+ * unread tail. The file is opened, and its unread records counted, on first
+ * use rather than on creation.
+ *
+ *
+ */
+class ScoreflexJobSpill {
+
+	/**
+	 * Selects the jobs kept by {@link ScoreflexJobSpill#purge(Filter)}.
+	 *
+	 *
+	 */
+	public interface Filter {
+		/**
+		 * @param job
+		 *          The serialized job
+		 * @return false to remove the job
+		 */
+		public boolean accept(JSONObject job);
+	}
+
+	private static final byte[] MAGIC = { 'S', 'F', 'X', 'S' };
+	private static final int READ_OFFSET_POSITION = 8;
+	private static final int HEADER_SIZE = 16;
+
+	private File mFile;
+	private long mCapacity;
+	private RandomAccessFile mRandomAccessFile;
+	private ScoreflexJobCodec mCodec = new ScoreflexJobCodec(false);
+	private ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+	private long mReadOffset = HEADER_SIZE;
+	private long mPeekOffset = HEADER_SIZE;
+	private long mLength = HEADER_SIZE;
+	private int mCount;
+	private int mPeekCount;
+	private boolean mOpened;
+
+	/**
+	 * Whether jobs were appended since the last {@link #sync()}.
+	 */
+	private boolean mDirty;
+
+	/**
+	 * The highest sequence number of the jobs appended since the spill was
+	 * last empty, consumed ones included.
+	 */
+	private long mLastSequence;
+
+	/**
+	 * @param file
+	 *          The spill file
+	 * @param capacity
+	 *          The maximum number of bytes of unread records
+	 */
+	public ScoreflexJobSpill(File file, long capacity) {
+		mFile = file;
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Returns the spill file used for the given queue name.
+	 *
+	 * @param context
+	 * @param queueName
+	 * @return
+	 */
+	protected static File getSpillFile(Context context, String queueName) {
+		return new File(context.getFilesDir(), String.format(
+				"scoreflex_job_queue_%s.spill", queueName));
+	}
+
+	/**
+	 * @return Whether there are unread jobs
+	 */
+	public synchronized boolean isEmpty() {
+		ensureOpen();
+		return 0 == mCount;
+	}
+
+	/**
+	 * @return The number of unread jobs
+	 */
+	public synchronized int size() {
+		ensureOpen();
+		return mCount;
+	}
+
+	/**
+	 * @return The number of bytes used by unread jobs
+	 */
+	public synchronized long getByteSize() {
+		ensureOpen();
+		return mLength - mReadOffset;
+	}
+
+	/**
+	 * Appends a job at the tail of the spill.
+	 *
+	 * @param job
+	 *          The serialized job
+	 * @return false if the spill is full or could not be written
+	 */
+	public synchronized boolean append(JSONObject job) {
+		ensureOpen();
+		if (null == mRandomAccessFile)
+			return false;
+
+		try {
+			mRecord.reset();
+			mCodec.writeAdd(mRecord, job.optString("id"), job);
+			if (getByteSize() + mRecord.size() > mCapacity)
+				return false;
+
+			mDirty = true;
+			mRandomAccessFile.seek(mLength);
+			mRandomAccessFile.write(mRecord.toByteArray());
+			mLength += mRecord.size();
+			mCount++;
+			mLastSequence = Math.max(mLastSequence, job.optLong("sequence", 0));
+			return true;
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not write job spill", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads jobs from the head of the spill without consuming them.
+	 *
+	 * @param max
+	 *          The maximum number of jobs to read
+	 * @return The jobs, in queue order
+	 */
+	public synchronized List<JSONObject> peek(int max) {
+		ensureOpen();
+		List<JSONObject> jobs = new ArrayList<JSONObject>();
+		mPeekOffset = mReadOffset;
+		mPeekCount = 0;
+		if (null == mRandomAccessFile || mReadOffset >= mLength)
+			return jobs;
+
+		InputStream input = null;
+		try {
+			input = openAt(mReadOffset);
+			while (jobs.size() < max && mPeekOffset < mLength) {
+				ScoreflexJobCodec.Record record;
+				try {
+					record = mCodec.read(input);
+				} catch (EOFException e) {
+					break;
+				} catch (IOException e) {
+					// Frames are self-contained, but a corrupted length makes the
+					// rest of the spill unreadable
+					Log.e("Scoreflex", "Dropping corrupted job spill tail", e);
+					mPeekOffset = mLength;
+					mPeekCount = mCount;
+					break;
+				}
+				if (null == record)
+					break;
+
+				mPeekOffset += record.mSize;
+				mPeekCount++;
+				if (null != record.mJob)
+					jobs.add(record.mJob);
+			}
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not read job spill", e);
+		} finally {
+			close(input);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Returns a sequence number at least as high as the ones of the unread
+	 * jobs, tracked as jobs are counted on opening and appended rather than
+	 * read from the spill.
+	 *
+	 * @return The sequence number, 0 if the spill is empty
+	 */
+	public synchronized long getLastSequence() {
+		ensureOpen();
+		return mLastSequence;
+	}
+
+	/**
+	 * Drops the jobs returned by the last call to {@link #peek(int)}.
+	 */
+	public synchronized void consume() {
+		ensureOpen();
+		if (null == mRandomAccessFile || mPeekOffset == mReadOffset)
+			return;
+
+		mReadOffset = mPeekOffset;
+		mCount -= mPeekCount;
+		mPeekCount = 0;
+		try {
+			if (mReadOffset >= mLength || mCount <= 0) {
+				reset();
+			} else if (mReadOffset - HEADER_SIZE > mLength - mReadOffset) {
+				rewrite();
+			} else {
+				mRandomAccessFile.seek(READ_OFFSET_POSITION);
+				mRandomAccessFile.writeLong(mReadOffset);
+				mRandomAccessFile.getFD().sync();
+			}
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not update job spill", e);
+		}
+	}
+
+	/**
+	 * Removes the unread jobs rejected by a filter, by copying the others to a
+	 * new file replacing the spill.
+	 *
+	 * @param filter
+	 * @return The number of removed jobs
+	 */
+	public synchronized int purge(Filter filter) {
+		ensureOpen();
+		if (null == mRandomAccessFile || 0 == mCount)
+			return 0;
+
+		File tmpFile = new File(mFile.getPath() + ".tmp");
+		int kept = 0;
+		int removed = 0;
+		InputStream input = null;
+		FileOutputStream fileOutput = null;
+		try {
+			input = openAt(mReadOffset);
+			fileOutput = new FileOutputStream(tmpFile);
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					fileOutput));
+			writeHeader(output, HEADER_SIZE);
+			long remaining = mLength - mReadOffset;
+			ScoreflexJobCodec.Record record;
+			while (remaining > 0 && null != (record = mCodec.read(input))) {
+				remaining -= record.mSize;
+				if (null == record.mJob)
+					continue;
+
+				if (filter.accept(record.mJob)) {
+					mCodec.writeAdd(output, record.mId, record.mJob);
+					kept++;
+				} else {
+					removed++;
+				}
+			}
+			if (0 == removed) {
+				close(fileOutput);
+				fileOutput = null;
+				tmpFile.delete();
+				return 0;
+			}
+
+			output.flush();
+			fileOutput.getFD().sync();
+			close(fileOutput);
+			fileOutput = null;
+
+			mRandomAccessFile.close();
+			if (!tmpFile.renameTo(mFile)) {
+				tmpFile.delete();
+				mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+				throw new IOException("Could not replace " + mFile);
+			}
+
+			mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+			mLength = mRandomAccessFile.length();
+			mReadOffset = HEADER_SIZE;
+			mPeekOffset = HEADER_SIZE;
+			mPeekCount = 0;
+			mCount = kept;
+			return removed;
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not purge job spill", e);
+			tmpFile.delete();
+			return 0;
+		} finally {
+			close(input);
+			close(fileOutput);
+		}
+	}
+
+	/**
+	 * Makes the appended jobs durable, if jobs were appended since the last
+	 * sync.
+	 *
+	 * @return false if the spill could not be synced
+	 */
+	public synchronized boolean sync() {
+		if (!mDirty)
+			return true;
+
+		if (null == mRandomAccessFile)
+			return false;
+
+		try {
+			mRandomAccessFile.getFD().sync();
+			mDirty = false;
+			return true;
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not sync job spill", e);
+			return false;
+		}
+	}
+
+	private void ensureOpen() {
+		if (!mOpened) {
+			mOpened = true;
+			open();
+		}
+	}
+
+	private void open() {
+		try {
+			mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+			mLength = mRandomAccessFile.length();
+			if (mLength < HEADER_SIZE) {
+				reset();
+				return;
+			}
+
+			byte[] magic = new byte[MAGIC.length];
+			mRandomAccessFile.readFully(magic);
+			int version = mRandomAccessFile.read();
+			mRandomAccessFile.seek(READ_OFFSET_POSITION);
+			mReadOffset = mRandomAccessFile.readLong();
+			if (!Arrays.equals(MAGIC, magic)
+					|| ScoreflexJobCodec.VERSION != version
+					|| mReadOffset < HEADER_SIZE || mReadOffset > mLength) {
+				Log.e("Scoreflex", "Discarding corrupted job spill");
+				reset();
+				return;
+			}
+
+			// Count the unread jobs and drop a torn trailing record
+			long recordEnd = mReadOffset;
+			InputStream input = openAt(mReadOffset);
+			try {
+				ScoreflexJobCodec.Record record;
+				while (null != (record = mCodec.read(input))) {
+					mCount++;
+					recordEnd += record.mSize;
+					if (null != record.mJob)
+						mLastSequence = Math.max(mLastSequence, record.mJob.optLong(
+								"sequence", 0));
+				}
+			} catch (IOException e) {
+				// Torn or corrupted frame, dropped below
+			} finally {
+				close(input);
+			}
+			if (recordEnd < mLength) {
+				mRandomAccessFile.setLength(recordEnd);
+				mLength = recordEnd;
+			}
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not open job spill", e);
+			close(mRandomAccessFile);
+			mRandomAccessFile = null;
+		}
+	}
+
+	private static void writeHeader(DataOutputStream output, long readOffset)
+			throws IOException {
+		output.write(MAGIC);
+		output.write(ScoreflexJobCodec.VERSION);
+		output.write(new byte[READ_OFFSET_POSITION - MAGIC.length - 1]);
+		output.writeLong(readOffset);
+	}
+
+	/**
+	 * Opens a buffered stream over the spill, starting at the given offset.
+	 */
+	private InputStream openAt(long offset) throws IOException {
+		FileInputStream input = new FileInputStream(mFile);
+		try {
+			input.getChannel().position(offset);
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+		return new BufferedInputStream(input);
+	}
+
+	private void reset() throws IOException {
+		mRandomAccessFile.setLength(0);
+		mRandomAccessFile.seek(0);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+		writeHeader(new DataOutputStream(header), HEADER_SIZE);
+		mRandomAccessFile.write(header.toByteArray());
+		mRandomAccessFile.getFD().sync();
+		mReadOffset = HEADER_SIZE;
+		mPeekOffset = HEADER_SIZE;
+		mLength = HEADER_SIZE;
+		mCount = 0;
+		mLastSequence = 0;
+	}
+
+	/**
+	 * Copies the unread records to a new file replacing the spill.
+	 */
+	private void rewrite() throws IOException {
+		File tmpFile = new File(mFile.getPath() + ".tmp");
+		FileOutputStream fileOutput = new FileOutputStream(tmpFile);
+		InputStream input = openAt(mReadOffset);
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					fileOutput));
+			writeHeader(output, HEADER_SIZE);
+			byte[] buffer = new byte[4096];
+			long remaining = mLength - mReadOffset;
+			int read;
+			while (remaining > 0
+					&& -1 != (read = input.read(buffer, 0,
+							(int) Math.min(buffer.length, remaining)))) {
+				output.write(buffer, 0, read);
+				remaining -= read;
+			}
+			output.flush();
+			fileOutput.getFD().sync();
+		} finally {
+			input.close();
+			fileOutput.close();
+		}
+
+		mRandomAccessFile.close();
+		if (!tmpFile.renameTo(mFile)) {
+			tmpFile.delete();
+			mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+			mRandomAccessFile.seek(READ_OFFSET_POSITION);
+			mRandomAccessFile.writeLong(mReadOffset);
+			throw new IOException("Could not replace " + mFile);
+		}
+
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		mLength = mRandomAccessFile.length();
+		mReadOffset = HEADER_SIZE;
+		mPeekOffset = HEADER_SIZE;
+	}
+
+	private static void close(Closeable closeable) {
+		if (null == closeable)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+
+}
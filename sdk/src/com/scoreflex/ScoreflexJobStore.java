@@ -0,0 +1,75 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * The persistent storage behind a {@link ScoreflexJobQueue}. Stores only see
+ * individual additions and removals so that the cost of persisting one queue
+ * operation does not depend on the queue depth. Additions and removals may be
+ * buffered until {@link #sync()} is called, which lets the queue group several
+ * operations into a single durable write.
+ *
+ *
+ */
+interface ScoreflexJobStore {
+
+	/**
+	 * Reads back the jobs that were persisted by a previous run.
+	 *
+	 * @return The serialized jobs, in queue order. Never null.
+	 */
+	public List<JSONObject> restore();
+
+	/**
+	 * Persists a job. Adding a job with an id that is already stored replaces
+	 * it and moves it to the tail of the queue.
+	 *
+	 * @param id
+	 *          The job id
+	 * @param job
+	 *          The serialized job
+	 */
+	public void add(String id, JSONObject job);
+
+	/**
+	 * Forgets a job.
+	 *
+	 * @param id
+	 *          The job id
+	 */
+	public void remove(String id);
+
+	/**
+	 * Makes the additions and removals performed so far durable.
+	 *
+	 * @return false if some of them could not be written
+	 */
+	public boolean sync();
+
+	/**
+	 * @return The approximate number of bytes the store uses on disk
+	 */
+	public long getByteSize();
+
+}
@@ -0,0 +1,361 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * A {@link ScoreflexJobStore} backed by an append-only journal file.
+ *
+ * Each addition or removal appends a single record to the journal, so the
+ * cost of persisting an operation does not depend on the number of queued
+ * jobs. Records are buffered until {@link #sync()} writes and flushes them to
+ * the device in one go. The journal starts with a 4 bytes magic and a version
+ * byte, followed by frames in the {@link ScoreflexJobCodec} format with
+ * string interning.
+ *
+ * {@link #restore()} replays the journal and ignores a torn or corrupted
+ * trailing frame left by a crash. Once dead records outnumber live ones the
+ * journal is compacted: live records are copied to a temporary file which
+ * then atomically replaces the journal.
+ *
+ *
+ */
+class ScoreflexJournalJobStore implements ScoreflexJobStore {
+
+	private static final int COMPACTION_MIN_DEAD_RECORDS = 64;
+	private static final byte[] MAGIC = { 'S', 'F', 'X', 'J' };
+
+	private File mFile;
+	private FileOutputStream mFileOutput;
+	private OutputStream mOutput;
+	private ScoreflexJobCodec mCodec = new ScoreflexJobCodec(true);
+	private boolean mWriteFailed;
+
+	/**
+	 * Index, in the journal, of the record holding each live job.
+	 */
+	private HashMap<String, Integer> mLiveRecords = new HashMap<String, Integer>();
+
+	/**
+	 * Number of records in the journal, dead or alive.
+	 */
+	private int mRecordCount;
+
+	public ScoreflexJournalJobStore(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Returns the journal file used for the given queue name.
+	 *
+	 * @param context
+	 * @param queueName
+	 * @return
+	 */
+	protected static File getJournalFile(Context context, String queueName) {
+		return new File(context.getFilesDir(), String.format(
+				"scoreflex_job_queue_%s.journal", queueName));
+	}
+
+	@Override
+	public synchronized List<JSONObject> restore() {
+		LinkedHashMap<String, JSONObject> jobs = new LinkedHashMap<String, JSONObject>();
+		mLiveRecords.clear();
+		mRecordCount = 0;
+		closeOutput();
+
+		boolean rewrite = false;
+		JournalReader reader = null;
+		try {
+			reader = JournalReader.open(mFile);
+			ScoreflexJobCodec.Record record;
+			while (null != (record = reader.next())) {
+				replay(record, jobs);
+				mRecordCount++;
+			}
+			rewrite = reader.isTorn();
+			mCodec = reader.getCodec();
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not read job journal", e);
+			rewrite = true;
+		} finally {
+			close(reader);
+		}
+
+		if (rewrite || mRecordCount > mLiveRecords.size())
+			compact();
+
+		return new ArrayList<JSONObject>(jobs.values());
+	}
+
+	@Override
+	public synchronized void add(String id, JSONObject job) {
+		if (append(ScoreflexJobCodec.FRAME_ADD, id, job))
+			mLiveRecords.put(id, mRecordCount - 1);
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized void remove(String id) {
+		if (!mLiveRecords.containsKey(id))
+			return;
+
+		if (append(ScoreflexJobCodec.FRAME_REMOVE, id, null))
+			mLiveRecords.remove(id);
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized boolean sync() {
+		boolean succeeded = !mWriteFailed;
+		mWriteFailed = false;
+		if (null == mOutput) {
+			if (!succeeded)
+				compact();
+			return succeeded;
+		}
+
+		try {
+			mOutput.flush();
+			mFileOutput.getFD().sync();
+			if (!succeeded)
+				compact();
+			return succeeded;
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not sync job journal", e);
+			closeOutput();
+			compact();
+			return false;
+		}
+	}
+
+	@Override
+	public synchronized long getByteSize() {
+		// Records still buffered are not counted
+		return mFile.length();
+	}
+
+	private void replay(ScoreflexJobCodec.Record record,
+			LinkedHashMap<String, JSONObject> jobs) {
+		switch (record.mType) {
+		case ScoreflexJobCodec.FRAME_ADD:
+			jobs.remove(record.mId);
+			jobs.put(record.mId, record.mJob);
+			mLiveRecords.put(record.mId, mRecordCount);
+			break;
+		case ScoreflexJobCodec.FRAME_REMOVE:
+			jobs.remove(record.mId);
+			mLiveRecords.remove(record.mId);
+			break;
+		}
+	}
+
+	private boolean append(int type, String id, JSONObject job) {
+		try {
+			if (null == mOutput) {
+				boolean empty = 0 == mFile.length();
+				mFileOutput = new FileOutputStream(mFile, true);
+				mOutput = new BufferedOutputStream(mFileOutput);
+				if (empty)
+					writeHeader(mOutput);
+			}
+			if (ScoreflexJobCodec.FRAME_ADD == type)
+				mCodec.writeAdd(mOutput, id, job);
+			else
+				mCodec.writeRemove(mOutput, id);
+			mRecordCount++;
+			return true;
+		} catch (IOException e) {
+			// The string table may now be out of sync with the file, the next
+			// sync rewrites the journal from what could be read back
+			Log.e("Scoreflex", "Could not write job journal", e);
+			mWriteFailed = true;
+			closeOutput();
+			return false;
+		}
+	}
+
+	private static void writeHeader(OutputStream output) throws IOException {
+		output.write(MAGIC);
+		output.write(ScoreflexJobCodec.VERSION);
+	}
+
+	private void compactIfNeeded() {
+		int deadRecords = mRecordCount - mLiveRecords.size();
+		if (deadRecords >= COMPACTION_MIN_DEAD_RECORDS
+				&& deadRecords > mLiveRecords.size())
+			compact();
+	}
+
+	/**
+	 * Rewrites the journal so that it only contains the live records.
+	 */
+	private void compact() {
+		closeOutput();
+		File tmpFile = new File(mFile.getPath() + ".tmp");
+		HashMap<String, Integer> liveRecords = new HashMap<String, Integer>();
+		ScoreflexJobCodec codec = new ScoreflexJobCodec(true);
+		JournalReader reader = null;
+		FileOutputStream fileOutput = null;
+		try {
+			reader = JournalReader.open(mFile);
+			fileOutput = new FileOutputStream(tmpFile);
+			OutputStream output = new BufferedOutputStream(fileOutput);
+			writeHeader(output);
+			ScoreflexJobCodec.Record record;
+			int index = 0;
+			while (null != (record = reader.next())) {
+				Integer liveIndex = mLiveRecords.get(record.mId);
+				if (ScoreflexJobCodec.FRAME_ADD == record.mType && null != liveIndex
+						&& index == liveIndex.intValue()) {
+					liveRecords.put(record.mId, liveRecords.size());
+					codec.writeAdd(output, record.mId, record.mJob);
+				}
+				index++;
+			}
+			output.flush();
+			fileOutput.getFD().sync();
+			close(fileOutput);
+			fileOutput = null;
+
+			if (!tmpFile.renameTo(mFile))
+				throw new IOException("Could not replace " + mFile);
+
+			mLiveRecords = liveRecords;
+			mRecordCount = liveRecords.size();
+			mCodec = codec;
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not compact job journal", e);
+			tmpFile.delete();
+		} finally {
+			close(reader);
+			close(fileOutput);
+		}
+	}
+
+	private void closeOutput() {
+		close(mOutput);
+		mOutput = null;
+		mFileOutput = null;
+	}
+
+	private static void close(Closeable closeable) {
+		if (null == closeable)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Reads the complete records of a journal file, one at a time.
+	 */
+	private static class JournalReader implements Closeable {
+		private InputStream mInput;
+		private boolean mTorn;
+		private ScoreflexJobCodec mCodec = new ScoreflexJobCodec(true);
+
+		/**
+		 * Opens a journal, a missing one reading as empty and one with an
+		 * unknown header as torn.
+		 */
+		public static JournalReader open(File file) throws IOException {
+			JournalReader reader = new JournalReader();
+			if (!file.exists() || 0 == file.length())
+				return reader;
+
+			InputStream input = new BufferedInputStream(new FileInputStream(file));
+			byte[] magic = new byte[MAGIC.length];
+			int read = input.read(magic);
+			int version = input.read();
+			if (MAGIC.length != read || !Arrays.equals(MAGIC, magic)
+					|| ScoreflexJobCodec.VERSION != version) {
+				input.close();
+				Log.e("Scoreflex", "Discarding corrupted job journal");
+				reader.mTorn = true;
+				return reader;
+			}
+			reader.mInput = input;
+			return reader;
+		}
+
+		/**
+		 * @return The next record or null at the end of the journal
+		 */
+		public ScoreflexJobCodec.Record next() {
+			if (null == mInput || mTorn)
+				return null;
+
+			try {
+				return mCodec.read(mInput);
+			} catch (EOFException e) {
+				// A frame interrupted while written
+				mTorn = true;
+			} catch (IOException e) {
+				Log.e("Scoreflex", "Skipping corrupted job journal tail", e);
+				mTorn = true;
+			}
+			return null;
+		}
+
+		/**
+		 * @return Whether the journal ends with an incomplete or corrupted record
+		 */
+		public boolean isTorn() {
+			return mTorn;
+		}
+
+		/**
+		 * @return A codec able to append to the journal that was read
+		 */
+		public ScoreflexJobCodec getCodec() {
+			return mCodec;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (null != mInput)
+				mInput.close();
+		}
+	}
+
+}
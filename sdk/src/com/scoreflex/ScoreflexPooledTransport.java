@@ -0,0 +1,341 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A {@link ScoreflexRestClient.Transport} keeping its connections alive
+ * between requests, so that consecutive API calls skip the TCP and TLS
+ * handshakes.
+ *
+ * Connections are pooled by a {@link ThreadSafeClientConnManager}, bounded in
+ * total and per host, and kept alive for as long as the server allows or
+ * {@link #DEFAULT_KEEP_ALIVE} otherwise. Connections idle for longer, or
+ * expired, are closed by a periodic eviction so that the pool never hands out
+ * a connection the server already dropped. Responses are requested gzipped
+ * and inflated transparently, and callbacks are delivered on the looper of
+ * the thread that sent the request, if it has one. Each request tells the
+ * {@link ScoreflexTrafficShaper} that the radio is active.
+ *
+ *
+ */
+class ScoreflexPooledTransport implements ScoreflexRestClient.Transport {
+
+	private static final int DEFAULT_MAX_CONNECTIONS = 6;
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+	private static final int DEFAULT_TIMEOUT = 10 * 1000;
+	private static final int SOCKET_BUFFER_SIZE = 8192;
+	private static final int MAX_RETRIES = 2;
+
+	/**
+	 * How long a connection is kept alive when the server does not tell.
+	 */
+	protected static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+
+	private static final long IDLE_TIMEOUT = 30 * 1000;
+	private static final long EVICTION_INTERVAL = 15 * 1000;
+
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String ENCODING_GZIP = "gzip";
+
+	private ThreadSafeClientConnManager mConnectionManager;
+	private DefaultHttpClient mClient;
+	private ExecutorService mExecutor;
+	private ScheduledExecutorService mEvictor;
+
+	public ScoreflexPooledTransport() {
+		this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST,
+				DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param maxConnections
+	 *          The maximum number of connections, which is also the number of
+	 *          requests sent at the same time
+	 * @param maxConnectionsPerHost
+	 *          The maximum number of connections to a single host
+	 * @param timeout
+	 *          The connection and socket timeout in milliseconds
+	 */
+	public ScoreflexPooledTransport(int maxConnections,
+			int maxConnectionsPerHost, int timeout) {
+		HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setTimeout(params, timeout);
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+				maxConnectionsPerHost));
+		HttpConnectionParams.setSoTimeout(params, timeout);
+		HttpConnectionParams.setConnectionTimeout(params, timeout);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		HttpProtocolParams.setUserAgent(params, "Scoreflex/"
+				+ Scoreflex.SDK_VERSION);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(),
+				80));
+		schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(),
+				443));
+
+		mConnectionManager = new ThreadSafeClientConnManager(params, schemes);
+		mClient = new DefaultHttpClient(mConnectionManager, params);
+		mClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+
+			@Override
+			public long getKeepAliveDuration(HttpResponse response,
+					HttpContext context) {
+				return getKeepAlive(response);
+			}
+		});
+
+		// Replays requests that failed on a connection the server closed
+		// before the request could be sent
+		mClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(
+				MAX_RETRIES, false));
+		mClient.addRequestInterceptor(new HttpRequestInterceptor() {
+
+			@Override
+			public void process(HttpRequest request, HttpContext context) {
+				if (!request.containsHeader(HEADER_ACCEPT_ENCODING))
+					request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+			}
+		});
+		mClient.addResponseInterceptor(new HttpResponseInterceptor() {
+
+			@Override
+			public void process(HttpResponse response, HttpContext context)
+					throws HttpException, IOException {
+				HttpEntity entity = response.getEntity();
+				Header encoding = null != entity ? entity.getContentEncoding() : null;
+				if (null != encoding
+						&& ENCODING_GZIP.equalsIgnoreCase(encoding.getValue()))
+					response.setEntity(new InflatingEntity(entity));
+			}
+		});
+
+		mExecutor = Executors.newFixedThreadPool(maxConnections,
+				new NamedThreadFactory("ScoreflexTransport"));
+		mEvictor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+				"ScoreflexTransportEvictor"));
+		mEvictor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				mConnectionManager.closeExpiredConnections();
+				mConnectionManager.closeIdleConnections(IDLE_TIMEOUT,
+						TimeUnit.MILLISECONDS);
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns how long the connection of a response can be kept alive, from
+	 * its Keep-Alive header or {@link #DEFAULT_KEEP_ALIVE}.
+	 */
+	private static long getKeepAlive(HttpResponse response) {
+		HeaderElementIterator it = new BasicHeaderElementIterator(
+				response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+		while (it.hasNext()) {
+			HeaderElement element = it.nextElement();
+			if (null != element.getValue()
+					&& "timeout".equalsIgnoreCase(element.getName())) {
+				try {
+					return Long.parseLong(element.getValue()) * 1000;
+				} catch (NumberFormatException e) {
+					break;
+				}
+			}
+		}
+		return DEFAULT_KEEP_ALIVE;
+	}
+
+	@Override
+	public void send(final HttpUriRequest request, final Callback callback) {
+		final Handler handler = null != Looper.myLooper() ? new Handler() : null;
+		mExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				Runnable result;
+				try {
+					// The radio is about to be woken, send the held back traffic with it
+					ScoreflexTrafficShaper.getDefault().onRadioActive();
+					HttpResponse response = mClient.execute(request);
+					final int statusCode = response.getStatusLine().getStatusCode();
+					final Header[] headers = response.getAllHeaders();
+					final JSONObject body = readBody(response.getEntity());
+					result = new Runnable() {
+
+						@Override
+						public void run() {
+							callback.onResponse(statusCode, headers, body);
+						}
+					};
+				} catch (IOException e) {
+					result = abort(request, callback, e);
+				} catch (RuntimeException e) {
+					// Such as an IllegalStateException from a shut down pool
+					result = abort(request, callback, e);
+				}
+
+				if (null != handler)
+					handler.post(result);
+				else
+					result.run();
+			}
+		});
+	}
+
+	/**
+	 * Aborts a failed request, releasing its connection.
+	 *
+	 * @return The task reporting the failure to the callback
+	 */
+	private static Runnable abort(HttpUriRequest request,
+			final Callback callback, final Throwable e) {
+		request.abort();
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				callback.onFailure(e);
+			}
+		};
+	}
+
+	/**
+	 * Reads a response body, releasing its connection back to the pool.
+	 *
+	 * @return The JSON object of the body, null if it is not one
+	 */
+	private static JSONObject readBody(HttpEntity entity) throws IOException {
+		if (null == entity)
+			return null;
+
+		String body = EntityUtils.toString(entity, HTTP.UTF_8);
+		if (null == body)
+			return null;
+
+		body = body.trim();
+		if (!body.startsWith("{"))
+			return null;
+
+		try {
+			Object value = new JSONTokener(body).nextValue();
+			return value instanceof JSONObject ? (JSONObject) value : null;
+		} catch (JSONException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Inflates a gzipped entity as it is read, so that the body is never held
+	 * compressed in memory.
+	 */
+	private static class InflatingEntity extends HttpEntityWrapper {
+
+		public InflatingEntity(HttpEntity wrapped) {
+			super(wrapped);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		private String mName;
+		private AtomicInteger mCount = new AtomicInteger();
+
+		public NamedThreadFactory(String name) {
+			mName = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, mName + "-"
+					+ mCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * A {@link ScoreflexJobStore} that saves the whole queue as a single JSON
+ * array in the Scoreflex SharedPreferences. Every operation rewrites the full
+ * snapshot, which makes it only suitable for small queues. This is the format
+ * used by earlier versions of the SDK.
+ *
+ *
+ */
+class ScoreflexPreferencesJobStore implements ScoreflexJobStore {
+
+	private String mPrefName;
+	private LinkedHashMap<String, JSONObject> mJobs = new LinkedHashMap<String, JSONObject>();
+	private long mByteSize;
+
+	public ScoreflexPreferencesJobStore(String queueName) {
+		mPrefName = getPrefName(queueName);
+	}
+
+	protected static String getPrefName(String queueName) {
+		return String.format("_scoreflex_job_queue_%s", queueName);
+	}
+
+	/**
+	 * Moves the jobs saved in the legacy SharedPreferences format for the given
+	 * queue into another store, then drops the preference once the store made
+	 * them durable.
+	 *
+	 * @param queueName
+	 *          The name of the queue
+	 * @param store
+	 *          The store that receives the jobs
+	 * @return The number of migrated jobs
+	 */
+	protected static int migrate(String queueName, ScoreflexJobStore store) {
+		SharedPreferences prefs = Scoreflex.getSharedPreferences();
+		if (null == prefs || !prefs.contains(getPrefName(queueName)))
+			return 0;
+
+		ScoreflexPreferencesJobStore legacy = new ScoreflexPreferencesJobStore(
+				queueName);
+		List<JSONObject> jobs = legacy.restore();
+		for (JSONObject job : jobs)
+			store.add(job.optString("id"), job);
+
+		// Keep the legacy jobs until the new store holds them on disk
+		if (!store.sync()) {
+			Log.e("Scoreflex", "Could not migrate job queue " + queueName);
+			return 0;
+		}
+
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.remove(legacy.mPrefName);
+		editor.commit();
+		return jobs.size();
+	}
+
+	@Override
+	public synchronized List<JSONObject> restore() {
+		mJobs.clear();
+		SharedPreferences prefs = Scoreflex.getSharedPreferences();
+		if (null != prefs) {
+			try {
+				String json = prefs.getString(mPrefName, "[]");
+				mByteSize = json.length();
+				JSONArray jsonArray = new JSONArray(json);
+				for (int i = 0; i < jsonArray.length(); i++) {
+					JSONObject job = jsonArray.getJSONObject(i);
+					mJobs.put(job.optString("id"), job);
+				}
+			} catch (JSONException e) {
+				Log.e("Scoreflex", "Could not restore job queue");
+			}
+		}
+		return new ArrayList<JSONObject>(mJobs.values());
+	}
+
+	@Override
+	public synchronized void add(String id, JSONObject job) {
+		mJobs.remove(id);
+		mJobs.put(id, job);
+		save();
+	}
+
+	@Override
+	public synchronized void remove(String id) {
+		if (null != mJobs.remove(id))
+			save();
+	}
+
+	@Override
+	public synchronized long getByteSize() {
+		// Characters of the preference, its XML escaping is not counted
+		return mByteSize;
+	}
+
+	@Override
+	public boolean sync() {
+		// Every operation is committed right away
+		return true;
+	}
+
+	private void save() {
+		SharedPreferences prefs = Scoreflex.getSharedPreferences();
+		if (null == prefs)
+			return;
+
+		JSONArray jsonArray = new JSONArray();
+		Iterator<Map.Entry<String, JSONObject>> it = mJobs.entrySet().iterator();
+		while (it.hasNext())
+			jsonArray.put(it.next().getValue());
+
+		String json = jsonArray.toString();
+		mByteSize = json.length();
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putString(mPrefName, json);
+		editor.commit();
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+/**
+ * Measures the rate of an event as an exponentially weighted moving average,
+ * so that recent events weigh more than older ones and the rate decays to 0
+ * when the events stop.
+ *
+ *
+ */
+class ScoreflexRateMeter {
+
+	private long mWindow;
+	private double mRate;
+	private long mLastUpdate;
+	private long mCount;
+
+	/**
+	 * @param window
+	 *          The averaging window in milliseconds
+	 */
+	public ScoreflexRateMeter(long window) {
+		mWindow = window;
+	}
+
+	/**
+	 * Records an occurrence of the event.
+	 */
+	public synchronized void mark() {
+		decay(System.currentTimeMillis());
+		mRate += 1000.0 / mWindow;
+		mCount++;
+	}
+
+	/**
+	 * @return The rate of the event, per second
+	 */
+	public synchronized double getRate() {
+		decay(System.currentTimeMillis());
+		return mRate;
+	}
+
+	/**
+	 * @return The number of occurrences of the event since its creation
+	 */
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	private void decay(long now) {
+		if (0 != mLastUpdate && now > mLastUpdate)
+			mRate *= Math.exp(-(double) (now - mLastUpdate) / mWindow);
+		mLastUpdate = now;
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.net.Uri;
+import android.util.Base64;
+
+/**
+ * Computes the X-Scoreflex-Authorization signature of requests: an
+ * HMAC-SHA1, keyed by the client secret, of the method, the URL, the sorted
+ * parameters and the JSON body if any, percent encoded as the API expects.
+ *
+ * Signing is on the path of every request that is not a GET, so it avoids
+ * allocating: the key is built once per client secret, each thread keeps an
+ * initialised {@link Mac} along with the buffers the signed string is
+ * written to, and the string is written in a single pass over the sorted
+ * parameter names, encoding as it goes. A JSON body is fed to the MAC from
+ * the very bytes that are sent, encoded chunk by chunk.
+ *
+ *
+ */
+class ScoreflexRequestSigner {
+
+	private static final String ALGORITHM = "HmacSHA1";
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static volatile Key sKey;
+
+	private static final ThreadLocal<ScoreflexRequestSigner> sSigners = new ThreadLocal<ScoreflexRequestSigner>() {
+
+		@Override
+		protected ScoreflexRequestSigner initialValue() {
+			return new ScoreflexRequestSigner();
+		}
+	};
+
+	/**
+	 * Returns the value of the authorization header of a request.
+	 *
+	 * @param method
+	 *          The HTTP method, such as POST
+	 * @param resource
+	 *          The resource path, starting with /, with an optional query
+	 *          string
+	 * @param params
+	 *          The request parameters, can be null
+	 * @return The header value
+	 * @throws GeneralSecurityException
+	 *           If HMAC-SHA1 is not available
+	 */
+	public static String getAuthorization(String method, String resource,
+			Scoreflex.RequestParams params) throws GeneralSecurityException {
+		return sSigners.get().sign(method, resource, params, null);
+	}
+
+	/**
+	 * Returns the value of the authorization header of a request with a JSON
+	 * body.
+	 *
+	 * @param method
+	 *          The HTTP method, such as POST
+	 * @param resource
+	 *          The resource path, starting with /, with an optional query
+	 *          string
+	 * @param params
+	 *          The request parameters, sent in the query string, can be null
+	 * @param body
+	 *          The UTF-8 bytes of the body, can be null
+	 * @return The header value
+	 * @throws GeneralSecurityException
+	 *           If HMAC-SHA1 is not available
+	 */
+	public static String getAuthorization(String method, String resource,
+			Scoreflex.RequestParams params, byte[] body)
+			throws GeneralSecurityException {
+		return sSigners.get().sign(method, resource, params, body);
+	}
+
+	/**
+	 * Returns the key for the current client secret, built once.
+	 */
+	private static SecretKeySpec getKey() {
+		String secret = Scoreflex.getClientSecret();
+		Key key = sKey;
+		if (null == key || !key.mSecret.equals(secret)) {
+			key = new Key(secret);
+			sKey = key;
+		}
+		return key.mSpec;
+	}
+
+	/**
+	 * A client secret along with its key.
+	 */
+	private static class Key {
+		protected final String mSecret;
+		protected final SecretKeySpec mSpec;
+
+		public Key(String secret) {
+			mSecret = secret;
+			try {
+				mSpec = new SecretKeySpec(secret.getBytes("UTF-8"), ALGORITHM);
+			} catch (UnsupportedEncodingException e) {
+				throw new Error(e);
+			}
+		}
+	}
+
+	private Mac mMac;
+	private SecretKeySpec mMacKey;
+	private StringBuilder mBuilder = new StringBuilder(256);
+	private byte[] mBytes = new byte[256];
+	private ArrayList<String> mNames = new ArrayList<String>();
+	private HashMap<String, String> mQueryParams = new HashMap<String, String>();
+
+	private String sign(String method, String resource,
+			Scoreflex.RequestParams params, byte[] body)
+			throws GeneralSecurityException {
+		StringBuilder sb = mBuilder;
+		sb.setLength(0);
+		mNames.clear();
+		mQueryParams.clear();
+
+		// Step 1: add HTTP method uppercase
+		sb.append(method).append('&');
+
+		// Step 2: add the URI, the query string being stripped from resource
+		String path = resource;
+		if (resource.indexOf('?') >= 0 || resource.indexOf('#') >= 0) {
+			Uri uri = Uri.parse(resource);
+			path = uri.getEncodedPath();
+			String query = uri.getQuery();
+			if (null != query) {
+				QueryStringParser parser = new QueryStringParser(query);
+				while (parser.next()) {
+					if (!mQueryParams.containsKey(parser.getName())) {
+						mQueryParams.put(parser.getName(), parser.getValue());
+						mNames.add(parser.getName());
+					}
+				}
+			}
+		}
+		appendEncoded(sb, Scoreflex.getBaseURL(), 1);
+		appendEncoded(sb, path, 1);
+
+		// Step 3: add URL encoded parameters, request ones taking precedence
+		sb.append('&');
+		if (null != params)
+			params.addParamNamesTo(mNames);
+		Collections.sort(mNames);
+		String previous = null;
+		for (String name : mNames) {
+			if (name.equals(previous))
+				continue;
+
+			String value = null != params ? params.getParamValue(name) : null;
+			if (null == value)
+				value = mQueryParams.get(name);
+
+			if (null != previous)
+				sb.append("%26");
+			appendEncoded(sb, name, 2);
+			sb.append("%3D");
+			appendEncoded(sb, null != value ? value : "", 2);
+			previous = name;
+		}
+
+		// Step 4: add body
+		sb.append('&');
+
+		Mac mac = getMac();
+		mac.update(toBytes(sb), 0, sb.length());
+		if (null != body)
+			updateEncoded(mac, body);
+		byte[] digest = mac.doFinal();
+		sb.setLength(0);
+		sb.append("Scoreflex sig=\"");
+		appendEncoded(sb, Base64.encodeToString(digest, Base64.NO_WRAP), 1);
+		sb.append("\", meth=\"0\"");
+		return sb.toString();
+	}
+
+	private Mac getMac() throws GeneralSecurityException {
+		SecretKeySpec key = getKey();
+		if (null == mMac)
+			mMac = Mac.getInstance(ALGORITHM);
+		if (key != mMacKey) {
+			mMac.init(key);
+			mMacKey = key;
+		}
+		return mMac;
+	}
+
+	/**
+	 * Copies the signed string, only made of ASCII characters once encoded,
+	 * to the reusable byte buffer.
+	 */
+	private byte[] toBytes(StringBuilder sb) {
+		int length = sb.length();
+		if (mBytes.length < length)
+			mBytes = new byte[Math.max(length, mBytes.length * 2)];
+		for (int i = 0; i < length; i++)
+			mBytes[i] = (byte) sb.charAt(i);
+		return mBytes;
+	}
+
+	/**
+	 * Feeds bytes percent encoded once to a MAC, through the reusable byte
+	 * buffer.
+	 */
+	private void updateEncoded(Mac mac, byte[] bytes) {
+		byte[] buffer = mBytes;
+		int length = 0;
+		for (byte b : bytes) {
+			if (length > buffer.length - 3) {
+				mac.update(buffer, 0, length);
+				length = 0;
+			}
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+					|| (b >= '0' && b <= '9') || '-' == b || '.' == b || '_' == b
+					|| '~' == b) {
+				buffer[length++] = b;
+			} else {
+				buffer[length++] = '%';
+				buffer[length++] = (byte) HEX[(b >> 4) & 0xF];
+				buffer[length++] = (byte) HEX[b & 0xF];
+			}
+		}
+		mac.update(buffer, 0, length);
+	}
+
+	/**
+	 * Appends a string percent encoded the given number of times, as UTF-8,
+	 * only leaving the unreserved characters of RFC 3986 as is.
+	 */
+	private static void appendEncoded(StringBuilder sb, String s, int times) {
+		int length = s.length();
+		for (int i = 0; i < length;) {
+			int c = s.codePointAt(i);
+			i += Character.charCount(c);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || '-' == c || '.' == c || '_' == c
+					|| '~' == c) {
+				sb.append((char) c);
+			} else if (c < 0x80) {
+				appendEscape(sb, c, times);
+			} else if (c < 0x800) {
+				appendEscape(sb, 0xC0 | (c >> 6), times);
+				appendEscape(sb, 0x80 | (c & 0x3F), times);
+			} else if (c < 0x10000) {
+				appendEscape(sb, 0xE0 | (c >> 12), times);
+				appendEscape(sb, 0x80 | ((c >> 6) & 0x3F), times);
+				appendEscape(sb, 0x80 | (c & 0x3F), times);
+			} else {
+				appendEscape(sb, 0xF0 | (c >> 18), times);
+				appendEscape(sb, 0x80 | ((c >> 12) & 0x3F), times);
+				appendEscape(sb, 0x80 | ((c >> 6) & 0x3F), times);
+				appendEscape(sb, 0x80 | (c & 0x3F), times);
+			}
+		}
+	}
+
+	/**
+	 * Appends the escape of a byte, its percent sign being escaped again for
+	 * each extra encoding.
+	 */
+	private static void appendEscape(StringBuilder sb, int b, int times) {
+		sb.append('%');
+		for (int i = 1; i < times; i++)
+			sb.append("25");
+		sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+	}
+
+}
@@ -19,14 +19,27 @@
 
 package com.scoreflex;
 
+import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
 
 import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpResponseException;
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.scoreflex.Scoreflex.Response;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 /**
@@ -34,11 +47,73 @@ import android.util.Log;
  * objects are run eventually, even if the user is currently offline and the app
  * terminated.
  *
+ * Requests are leased from the job queue and only removed from it once the
+ * server accepted or rejected them: a 5xx response or a timeout keeps them
+ * for a later replay. A dispatcher thread replays them as soon as they are
+ * queued, up to {@link #DEFAULT_PARALLELISM} of them being in flight at the
+ * same time and optionally no faster than a target drain rate. It blocks
+ * while there is nothing to replay.
+ *
+ * A request that cannot reach the server, or that the server failed, is
+ * retried after an exponential
+ * backoff with jitter, its attempt count being saved with it, and the
+ * dispatcher itself pauses for a backoff growing with the number of
+ * consecutive network failures, so that a flaky network does not turn into a
+ * tight retry loop.
+ *
+ * Requests can optionally be replayed in batches, several of them being sent
+ * in a single envelope to a batch resource (see
+ * {@link #setBatchResource(String, int)}): the envelope holds a
+ * <code>requests</code> parameter, a JSON array of
+ * <code>{"method", "resource", "params", "body"}</code> objects, the body
+ * being only set for the requests sending a JSON body, and the server is
+ * expected to answer with a <code>responses</code> array holding the response
+ * of each request, in the same order. Each response is then handled as the
+ * answer to its own request, and the requests whose circuit breaker is open
+ * are left out of the envelope. Batching is disabled by default, and disables
+ * itself if the server answers an envelope with a 400, 404 or 405 status.
+ * Other failed envelopes are replayed after a backoff.
+ *
+ * While Scoreflex is not reachable the dispatcher is parked. It is woken by
+ * the {@link Scoreflex#INTENT_CONNECTIVITY_CHANGED} broadcast and then
+ * replays everything right away, delayed requests included. As a fallback
+ * for a missed transition, a single request is tried as a probe once the
+ * backoff elapsed. A request whose answer never comes, because the process
+ * died for instance, is replayed once its lease times out.
+ *
+ * Replays being background traffic, they wait for a transmission window of
+ * the {@link ScoreflexTrafficShaper} before being sent, a flush opening one
+ * right away.
+ *
+ * Requests suspended by their {@link ScoreflexCircuitBreaker} are kept and
+ * retried once it lets a probe through, without pausing the replay of the
+ * other families of requests.
+ *
+ * {@link #flush(long)} asks the dispatcher to replay everything right away
+ * and tells when the requests saved before the call have been delivered, so
+ * that a game can wait for its offline scores to reach the server before
+ * showing a leaderboard.
+ *
  *
  */
 class ScoreflexRequestVault {
 
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	private static final long CHALLENGES_TIME_TO_LIVE = 3 * DAY;
+	private static final long LOW_PRIORITY_TIME_TO_LIVE = 7 * DAY;
+	private static final long DEFAULT_TIME_TO_LIVE = 30 * DAY;
+	private static final long LEASE_TIMEOUT = 2 * 60 * 1000;
+	private static final long RETRY_BASE_DELAY = 5 * 1000;
+	private static final long RETRY_MAX_DELAY = 15 * 60 * 1000;
+	private static final long THROUGHPUT_WINDOW = 60 * 1000;
+
+	/**
+	 * Default maximum number of requests replayed at the same time.
+	 */
+	protected static final int DEFAULT_PARALLELISM = 4;
+
 	private static ScoreflexRequestVault sDefaultVault;
+	private static final Random sRandom = new Random();
 
 	public static ScoreflexRequestVault getDefaultVault() {
 		return sDefaultVault;
@@ -55,73 +130,521 @@ class ScoreflexRequestVault {
 
 	private ScoreflexJobQueue mJobQueue;
 	private Thread mThread;
+	private long mDispatchInterval;
+	private long mLastDispatch;
+	private long mPausedUntil;
+	private int mNetworkFailures;
+	private boolean mReachable = Scoreflex.isReachable();
+	private int mParallelism = DEFAULT_PARALLELISM;
+	private String mBatchResource;
+	private int mMaxBatchSize = 1;
+	private ScoreflexRateMeter mDrained = new ScoreflexRateMeter(THROUGHPUT_WINDOW);
+	private ScoreflexTrafficShaper mShaper = ScoreflexTrafficShaper.getDefault();
 
 	public ScoreflexRequestVault(ScoreflexJobQueue jobQueue) {
 		mJobQueue = jobQueue;
-		mThread = new Thread(getRunnable());
+		mJobQueue.setCompactor(new ScoreflexScoreCompactor());
+		mJobQueue.setMaxLeases(mParallelism);
+		mThread = new Thread(getRunnable(), "ScoreflexRequestVault");
+		mThread.setDaemon(true);
 		mThread.start();
+
+		Context context = Scoreflex.getApplicationContext();
+		if (null != context) {
+			LocalBroadcastManager.getInstance(context).registerReceiver(
+					new BroadcastReceiver() {
+
+						@Override
+						public void onReceive(Context context, Intent intent) {
+							onReachabilityChanged(intent.getBooleanExtra(
+									Scoreflex.INTENT_CONNECTIVITY_EXTRA_CONNECTIVITY, false));
+						}
+					}, new IntentFilter(Scoreflex.INTENT_CONNECTIVITY_CHANGED));
+		}
+	}
+
+	/**
+	 * Stops the dispatcher, the saved requests being left in the queue.
+	 */
+	void stop() {
+		mThread.interrupt();
+	}
+
+	/**
+	 * @return A future completed once the requests saved by earlier runs have
+	 *         been restored
+	 */
+	public Future<Boolean> getReadyFuture() {
+		return mJobQueue.getReadyFuture();
+	}
+
+	/**
+	 * Replays the saved requests right away, lifting the backoff of the
+	 * requests and of the dispatcher, and returns a future completed once
+	 * every request saved before the call has been delivered or dropped.
+	 * While Scoreflex is not reachable, a single request is tried as a probe.
+	 *
+	 * @param timeout
+	 *          The maximum time to wait in milliseconds
+	 * @return A future completed with true once the requests have been
+	 *         delivered, false if the timeout elapsed first
+	 */
+	public Future<Boolean> flush(long timeout) {
+		Future<Boolean> flushed = mJobQueue.flush(timeout);
+		mShaper.onRadioActive();
+		synchronized(this) {
+			mPausedUntil = mReachable ? 0 : System.currentTimeMillis();
+			notifyAll();
+		}
+		mJobQueue.retryDelayedJobs();
+		return flushed;
 	}
 
 	/**
 	 * Save a request in the vault for future retry
 	 *
 	 * @param request
+	 * @return A future completed with true once the request is durably saved,
+	 *         false if the vault is full
 	 * @throws JSONException
 	 */
-	public void put(ScoreflexRestClient.Request request) throws JSONException {
-		mJobQueue.postJobWithDescription(request.toJSON());
+	public Future<Boolean> put(ScoreflexRestClient.Request request) throws JSONException {
+		String lane = request.getLane();
+		if (null == lane)
+			lane = getLane(request.getResource());
+
+		long timeToLive = request.getTimeToLive();
+		if (Scoreflex.TIME_TO_LIVE_DEFAULT == timeToLive)
+			timeToLive = getTimeToLive(request.getResource());
+		long expirationDate = timeToLive > 0 ? System.currentTimeMillis()
+				+ timeToLive : 0;
+
+		return mJobQueue.postJobWithDescription(request.toJSON(), lane,
+				expirationDate).getPersistedFuture();
 	}
 
-	private Runnable getRunnable() {
-		return new Runnable() {
+	/**
+	 * Infers how long a request can wait in the vault from its resource:
+	 * challenge turns are useless once the challenge is over, device tokens,
+	 * invitations and notification tracking get stale within a week.
+	 *
+	 * @param resource
+	 * @return The time to live in milliseconds
+	 */
+	protected static long getTimeToLive(String resource) {
+		if (null == resource)
+			return DEFAULT_TIME_TO_LIVE;
+
+		if (resource.startsWith("/challenges/"))
+			return CHALLENGES_TIME_TO_LIVE;
+
+		if (resource.startsWith("/notifications/")
+				|| resource.startsWith("/social/"))
+			return LOW_PRIORITY_TIME_TO_LIVE;
+
+		return DEFAULT_TIME_TO_LIVE;
+	}
+
+	/**
+	 * Infers the job queue lane of a request from its resource: challenge
+	 * turns other players are waiting on go first, device tokens, invitations
+	 * and notification tracking can wait.
+	 *
+	 * @param resource
+	 * @return
+	 */
+	protected static String getLane(String resource) {
+		if (null == resource)
+			return ScoreflexJobQueue.LANE_DEFAULT;
+
+		if (resource.startsWith("/challenges/"))
+			return ScoreflexJobQueue.LANE_HIGH;
+
+		if (resource.startsWith("/notifications/")
+				|| resource.startsWith("/social/"))
+			return ScoreflexJobQueue.LANE_LOW;
+
+		return ScoreflexJobQueue.LANE_DEFAULT;
+	}
+
+	/**
+	 * Sets the maximum number of requests replayed at the same time.
+	 *
+	 * @param parallelism
+	 *          At least 1
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		mParallelism = Math.max(1, parallelism);
+		mJobQueue.setMaxLeases(mParallelism * mMaxBatchSize);
+	}
+
+	/**
+	 * Enables the batched replay of requests.
+	 *
+	 * @param resource
+	 *          The batch resource, null to replay requests one by one
+	 * @param maxBatchSize
+	 *          The maximum number of requests in a batch
+	 */
+	public synchronized void setBatchResource(String resource, int maxBatchSize) {
+		mBatchResource = resource;
+		mMaxBatchSize = null != resource ? Math.max(1, maxBatchSize) : 1;
+		mJobQueue.setMaxLeases(mParallelism * mMaxBatchSize);
+	}
+
+	private synchronized String getBatchResource() {
+		return mBatchResource;
+	}
+
+	private synchronized int getMaxBatchSize() {
+		return mMaxBatchSize;
+	}
+
+	/**
+	 * Sets the rate the vault does not replay requests faster than.
+	 *
+	 * @param requestsPerSecond
+	 *          The rate, 0 to only be bound by the parallelism
+	 */
+	public synchronized void setDrainRate(double requestsPerSecond) {
+		mDispatchInterval = requestsPerSecond > 0 ? (long) (1000 / requestsPerSecond)
+				: 0;
+		notifyAll();
+	}
+
+	/**
+	 * @return The rate at which replayed requests completed over the last
+	 *         minute, per second
+	 */
+	public double getDrainThroughput() {
+		return mDrained.getRate();
+	}
+
+	/**
+	 * @return The number of requests replayed and removed from the vault since
+	 *         it was started
+	 */
+	public long getDrainedCount() {
+		return mDrained.getCount();
+	}
+
+	/**
+	 * @return The depth, size on disk, oldest request age and delivery
+	 *         histograms of the vault, read without locking
+	 */
+	public ScoreflexJobQueue.Stats getStats() {
+		return mJobQueue.getStats();
+	}
+
+	/**
+	 * Sets the listener receiving the stats of the vault when they change, on
+	 * the thread of its queue.
+	 *
+	 * @param listener
+	 *          The listener, null to stop receiving them
+	 */
+	public void setStatsListener(ScoreflexJobQueue.StatsListener listener) {
+		mJobQueue.setStatsListener(listener);
+	}
+
+	/**
+	 * Blocks until the next request can be dispatched without exceeding the
+	 * drain rate nor replaying while the network is down.
+	 */
+	private synchronized void awaitDispatch() throws InterruptedException {
+		while (true) {
+			long now = System.currentTimeMillis();
+
+			// Parked until reachable, or until it is time for a probe
+			if (!mReachable && 0 == mPausedUntil)
+				mPausedUntil = now + RETRY_MAX_DELAY;
+
+			long next = Math.max(mPausedUntil, mLastDispatch + mDispatchInterval);
+			if (next <= now) {
+				mLastDispatch = now;
+				if (!mReachable)
+					mPausedUntil = 0;
+				return;
+			}
+			wait(next - now);
+		}
+	}
+
+	/**
+	 * Called when the reachability of Scoreflex changed.
+	 */
+	void onReachabilityChanged(boolean reachable) {
+		synchronized(this) {
+			if (reachable == mReachable)
+				return;
+
+			mReachable = reachable;
+			if (reachable) {
+				mNetworkFailures = 0;
+				mPausedUntil = 0;
+			}
+			notifyAll();
+		}
+
+		// Whatever made the requests back off is over
+		if (reachable)
+			mJobQueue.retryDelayedJobs();
+	}
+
+	/**
+	 * Returns the delay before retrying after the given number of failed
+	 * attempts: an exponential backoff, capped, of which a random part is
+	 * kept so that retries do not happen in lockstep.
+	 *
+	 * @param attempts
+	 * @return The delay in milliseconds
+	 */
+	protected static long getRetryDelay(int attempts) {
+		long delay = RETRY_MAX_DELAY;
+		if (attempts < 20)
+			delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << attempts);
+		synchronized(sRandom) {
+			return delay / 2 + (long) (sRandom.nextDouble() * (delay / 2));
+		}
+	}
+
+	/**
+	 * Called when a replayed request could not reach the server. The requests
+	 * in flight when the network went down fail together, only the first
+	 * failure of a dispatch round pauses the vault and counts towards its
+	 * backoff.
+	 */
+	private synchronized void onNetworkFailure() {
+		long now = System.currentTimeMillis();
+		if (mPausedUntil > now)
+			return;
+
+		mPausedUntil = now + getRetryDelay(mNetworkFailures++);
+		notifyAll();
+	}
+
+	/**
+	 * Called when a replayed request reached the server.
+	 */
+	private synchronized void onServerResponse() {
+		mDrained.mark();
+		mNetworkFailures = 0;
+		if (0 != mPausedUntil) {
+			mPausedUntil = 0;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Handles the outcome of a replayed request.
+	 */
+	private void onResult(ScoreflexJobQueue.Job job, Throwable e) {
+
+		// Not sent because the server keeps failing this kind of request, wait
+		// for the breaker to let a probe through
+		if (e instanceof ScoreflexCircuitBreaker.OpenException) {
+			job.repostAfter(Math.max(getRetryDelay(job.getAttempts()),
+					((ScoreflexCircuitBreaker.OpenException) e).getRetryAfter()));
+			return;
+		}
+
+		// Post back to job queue if this is a network error or a timeout
+		if (e instanceof NoHttpResponseException
+				|| e instanceof UnknownHostException
+				|| e instanceof SocketException
+				|| e instanceof InterruptedIOException) {
+			onNetworkFailure();
+			job.repostAfter(getRetryDelay(job.getAttempts()));
+			return;
+		}
+
+		// Accepted, or rejected by the server with a 4xx, replaying it would not
+		// help. A 2xx answer that is not JSON counts as accepted.
+		if (null == e || e instanceof JSONException
+				|| (e instanceof HttpResponseException
+						&& ((HttpResponseException) e).getStatusCode() < 500)) {
+			onServerResponse();
+			job.ack();
+			return;
+		}
+
+		// Failed by the server, or by an unexpected error: try again later
+		if (e instanceof HttpResponseException)
+			onServerResponse();
+		job.repostAfter(getRetryDelay(job.getAttempts()));
+	}
+
+	/**
+	 * Replays a single request.
+	 */
+	private void dispatch(final ScoreflexJobQueue.Job job) {
+		ScoreflexRestClient.Request request;
+		try {
+			request = new ScoreflexRestClient.Request(job.getJobDescription());
+		} catch (JSONException e) {
+			Log.e("Scoreflex", "Could not restore request", e);
+			job.ack();
+			return;
+		}
+
+		request.setHandler(new Scoreflex.ResponseHandler() {
 
 			@Override
-			public void run() {
-				try {
-					while (true) {
+			public void onFailure(Throwable e, Response errorResponse) {
+				onResult(job, e);
+			}
 
-						// Sleep for 10 seconds
-						Thread.sleep(1000 * 10);
+			@Override
+			public void onSuccess(Response response) {
+				onResult(job, null);
+			}
 
-						// Blocks
-						final ScoreflexJobQueue.Job job = mJobQueue.nextJob();
+		});
+		ScoreflexRestClient.requestAuthenticated(request);
+	}
 
-						final ScoreflexRestClient.Request request;
-						try {
-							request = new ScoreflexRestClient.Request(
-									job.getJobDescription());
-						} catch (JSONException e) {
-							Log.e("Scoreflex", "Could not restore request", e);
-							continue;
-						}
+	/**
+	 * Replays several requests in a single envelope. The requests whose
+	 * breaker is open are left out of it, as they would have been if sent one
+	 * by one.
+	 */
+	private void dispatchBatch(String batchResource,
+			List<ScoreflexJobQueue.Job> leased) {
+		final List<ScoreflexJobQueue.Job> jobs = new ArrayList<ScoreflexJobQueue.Job>();
+		final List<ScoreflexCircuitBreaker> breakers = new ArrayList<ScoreflexCircuitBreaker>();
+		JSONArray items = new JSONArray();
+		for (ScoreflexJobQueue.Job job : leased) {
+			try {
+				ScoreflexRestClient.Request request = new ScoreflexRestClient.Request(
+						job.getJobDescription());
+				ScoreflexCircuitBreaker breaker = ScoreflexCircuitBreaker
+						.forResource(request.getResource());
+				if (!breaker.allowRequest()) {
+					onResult(job, breaker.newOpenException());
+					continue;
+				}
+
+				JSONObject item = new JSONObject();
+				item.put("method", request.getMethodName());
+				item.put("resource", request.getResource());
+				item.put("params", job.getJobDescription().getJSONObject("params"));
+				if (null != request.getBody())
+					item.put("body", request.getBody());
+				items.put(item);
+				jobs.add(job);
+				breakers.add(breaker);
+			} catch (JSONException e) {
+				Log.e("Scoreflex", "Could not restore request", e);
+				job.ack();
+			}
+		}
+		if (jobs.isEmpty())
+			return;
+
+		final String accessToken = ScoreflexRestClient.getAccessToken();
+		Scoreflex.RequestParams params = new Scoreflex.RequestParams();
+		params.put("requests", items.toString());
+		ScoreflexRestClient.post(batchResource, params, new Scoreflex.ResponseHandler() {
+
+			@Override
+			public void onFailure(Throwable e, Response errorResponse) {
+				int statusCode = e instanceof HttpResponseException ? ((HttpResponseException) e)
+						.getStatusCode() : 0;
+				if (400 == statusCode || 404 == statusCode || 405 == statusCode) {
+					// The server does not handle this batch resource
+					Log.e("Scoreflex", "Batch replay rejected with status " + statusCode
+							+ ", replaying requests one by one");
+					setBatchResource(null, 1);
+					for (ScoreflexJobQueue.Job job : jobs)
+						job.repost();
+					return;
+				}
+
+				// The envelope failed as a whole, none of its requests was handled
+				if (e instanceof HttpResponseException) {
+					onServerResponse();
+					for (ScoreflexJobQueue.Job job : jobs)
+						job.repostAfter(getRetryDelay(job.getAttempts()));
+					return;
+				}
 
-						request.setHandler(new Scoreflex.ResponseHandler() {
+				for (ScoreflexJobQueue.Job job : jobs)
+					onResult(job, e);
+			}
+
+			@Override
+			public void onSuccess(Response response) {
+				JSONArray responses = null != response.getJSONObject() ? response
+						.getJSONObject().optJSONArray("responses") : null;
+				boolean invalidated = false;
+				for (int i = 0; i < jobs.size(); i++) {
+					ScoreflexJobQueue.Job job = jobs.get(i);
+
+					// Requests the server did not answer are replayed
+					if (null == responses || i >= responses.length()) {
+						job.repost();
+						continue;
+					}
 
-							@Override
-							public void onFailure(Throwable e,
-									Response errorResponse) {
+					JSONObject itemResponse = responses.optJSONObject(i);
+					Response item = null != itemResponse ? new Response(itemResponse)
+							: null;
+					if (null == item || !item.isError()) {
+						breakers.get(i).onResult(null);
+						onResult(job, null);
+						continue;
+					}
+
+					// Sent with a token the server no longer accepts, replayed once a
+					// new one is fetched
+					if (Scoreflex.ERROR_INVALID_ACCESS_TOKEN == item.getErrorCode()) {
+						if (!invalidated)
+							ScoreflexTokenManager.getDefault().invalidate(accessToken);
+						invalidated = true;
+						job.repost();
+						continue;
+					}
+
+					// Handled like the response of a request sent on its own
+					Log.e("Scoreflex", "Replayed request failed: " + item.getErrorMessage());
+					int status = item.getErrorStatus();
+					Throwable e = new HttpResponseException(status > 0 ? status : 400,
+							item.getErrorMessage());
+					breakers.get(i).onResult(e);
+					onResult(job, e);
+				}
+			}
 
-								// Post back to job queue if this is a network
-								// error
-								if (e instanceof NoHttpResponseException
-										|| e instanceof UnknownHostException
-										|| e instanceof SocketException) {
-									job.repost();
-									return;
-								}
+		});
+	}
 
-//								super.onFailure(e, errorResponse);
-							}
+	private Runnable getRunnable() {
+		return new Runnable() {
 
-							@Override
-							public void onSuccess(Response response) {
-								// TODO Auto-generated method stub
+			@Override
+			public void run() {
+				try {
+					while (true) {
 
-							}
+						// Blocks while unreachable or to respect the drain rate
+						awaitDispatch();
 
-						});
-						ScoreflexRestClient.requestAuthenticated(request);
+						// Blocks until a job is available and a lease is free
+						String batchResource = getBatchResource();
+						if (null == batchResource) {
+							ScoreflexJobQueue.Job job = mJobQueue.leaseJob(LEASE_TIMEOUT);
+							mShaper.awaitTransmission();
+							dispatch(job);
+							continue;
+						}
 
+						List<ScoreflexJobQueue.Job> jobs = mJobQueue.leaseJobs(
+								getMaxBatchSize(), LEASE_TIMEOUT);
+						mShaper.awaitTransmission();
+						if (1 == jobs.size())
+							dispatch(jobs.get(0));
+						else
+							dispatchBatch(batchResource, jobs);
 					}
 				} catch (InterruptedException e) {
 					Log.i("Scoreflex", "Vault interrupted", e);
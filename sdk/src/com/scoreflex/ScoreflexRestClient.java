@@ -19,37 +19,37 @@
 
 package com.scoreflex;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
-import java.net.URLEncoder;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
-import java.util.TreeSet;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicHeader;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.net.Uri;
 import android.os.Handler;
-import android.support.v4.content.LocalBroadcastManager;
-import android.util.Base64;
+import android.os.Looper;
 import android.util.Log;
 
 import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.JsonHttpResponseHandler;
 import com.scoreflex.Scoreflex.Response;
 
 /**
@@ -62,15 +62,88 @@ class ScoreflexRestClient {
 		GET, PUT, POST, DELETE
 	}
 
-	private static final int RETRY_INTERVAL = 1000; //60000;
-	private static final String ACCESS_TOKEN_PREF_NAME = "__scoreflex_access_token";
-	private static final String ACCESS_TOKEN_IS_ANONYMOUS_PREF_NAME = "__scoreflex_access_token_is_anonymous";
-	private static final String SID_PREF_NAME = "__scoreflex_sid";
-	private static final String PLAYER_ID_PREF_NAME = "__player_id";
-	private static boolean sIsFetchingAnonymousAccessToken = false;
-	private static List<Scoreflex.ResponseHandler> sPendingHandlers = new ArrayList<Scoreflex.ResponseHandler>();
+	/**
+	 * Sends the HTTP requests of the client, which can be replaced to serve
+	 * them from a stand-in.
+	 *
+	 *
+	 */
+	protected interface Transport {
+
+		/**
+		 * Receives the outcome of a request.
+		 *
+		 *
+		 */
+		public interface Callback {
+			/**
+			 * Called when the server answered, whatever the status.
+			 *
+			 * @param statusCode
+			 * @param headers
+			 * @param body
+			 *          The JSON object the server answered with, null if the body
+			 *          is not one
+			 */
+			public void onResponse(int statusCode, Header[] headers, JSONObject body);
+
+			/**
+			 * Called when a stored response is served without a request. It tells
+			 * nothing about the reachability of the server, unlike a revalidated
+			 * response which is delivered to {@link #onResponse}.
+			 *
+			 * @param headers
+			 * @param body
+			 *          The stored JSON object
+			 */
+			public void onCachedResponse(Header[] headers, JSONObject body);
+
+			/**
+			 * Called when the server could not be reached or did not answer.
+			 *
+			 * @param e
+			 */
+			public void onFailure(Throwable e);
+		}
+
+		/**
+		 * Sends a request without blocking. The callback is called on the
+		 * looper of the calling thread if it has one.
+		 *
+		 * @param request
+		 * @param callback
+		 */
+		public void send(HttpUriRequest request, Callback callback);
+	}
+
+	private static Transport sTransport = new ScoreflexCachingTransport(
+			new ScoreflexPooledTransport(), ScoreflexCachingTransport.DEFAULT_MAX_SIZE);
+
+	/**
+	 * Replaces the transport sending the requests.
+	 *
+	 * @param transport
+	 */
+	protected static void setTransport(Transport transport) {
+		sTransport = transport;
+	}
 
-	private static AsyncHttpClient sClient = new AsyncHttpClient();
+	/**
+	 * The size in bytes from which POST and PUT bodies are gzipped, when
+	 * enabled. Smaller bodies barely shrink and are sent as is.
+	 */
+	private static final int COMPRESSION_THRESHOLD = 1024;
+
+	private static volatile boolean sCompressRequests = false;
+
+	/**
+	 * Enables the gzip compression of the large POST and PUT bodies.
+	 *
+	 * @param enabled
+	 */
+	protected static void setCompressRequests(boolean enabled) {
+		sCompressRequests = enabled;
+	}
 
 	/**
 	 * A GET request
@@ -105,9 +178,11 @@ class ScoreflexRestClient {
 	}
 
 	/**
-	 * A POST request that is guaranteed to be executed when a network connection
-	 * is present, surviving application reboot. The responseHandler will be
-	 * called only if the network is present when the request is first run.
+	 * A POST request sent right away, and saved to the
+	 * {@link ScoreflexRequestVault} if it cannot reach the server so that it is
+	 * replayed once a network connection is present, surviving application
+	 * reboot. The responseHandler will be called only if the network is present
+	 * when the request is first run.
 	 *
 	 * @param resource
 	 * @param params
@@ -116,9 +191,61 @@ class ScoreflexRestClient {
 	protected static void postEventually(String resource,
 			Scoreflex.RequestParams params,
 			final Scoreflex.ResponseHandler responseHandler) {
+		postEventually(resource, params, responseHandler, null,
+				Scoreflex.TIME_TO_LIVE_DEFAULT);
+	}
+
+	/**
+	 * A POST request sent right away, and saved to the
+	 * {@link ScoreflexRequestVault} if it cannot reach the server so that it is
+	 * replayed once a network connection is present, surviving application
+	 * reboot. The responseHandler will be called only if the network is present
+	 * when the request is first run.
+	 *
+	 * @param resource
+	 * @param params
+	 * @param responseHandler
+	 * @param lane
+	 *          The vault lane the request is replayed from, null to infer it
+	 *          from the resource
+	 * @param timeToLive
+	 *          The time in milliseconds after which the request is dropped from
+	 *          the vault, {@link Scoreflex#TIME_TO_LIVE_DEFAULT} to infer it
+	 *          from the resource or {@link Scoreflex#TIME_TO_LIVE_FOREVER}
+	 */
+	protected static void postEventually(String resource,
+			Scoreflex.RequestParams params,
+			final Scoreflex.ResponseHandler responseHandler, String lane,
+			long timeToLive) {
 
 		// Create a request
-		final Request request = new Request(HttpMethod.POST, resource, params, null);
+		Request request = new Request(HttpMethod.POST, resource, params, null);
+		request.setLane(lane);
+		request.setTimeToLive(timeToLive);
+		postEventually(request, responseHandler);
+	}
+
+	/**
+	 * A POST request with a JSON body, sent and saved to the
+	 * {@link ScoreflexRequestVault} like
+	 * {@link #postEventually(String, Scoreflex.RequestParams, Scoreflex.ResponseHandler)}.
+	 * The responseHandler will be called only if the network is present when
+	 * the request is first run.
+	 *
+	 * @param resource
+	 * @param body
+	 *          The JSON body, serialized once when the request is first sent
+	 * @param responseHandler
+	 */
+	protected static void postJsonEventually(String resource, JSONObject body,
+			final Scoreflex.ResponseHandler responseHandler) {
+		Request request = new Request(HttpMethod.POST, resource, null, null);
+		request.setBody(body);
+		postEventually(request, responseHandler);
+	}
+
+	private static void postEventually(final Request request,
+			final Scoreflex.ResponseHandler responseHandler) {
 
 		// Wrap the provided handler with ours
 		request.setHandler(new Scoreflex.ResponseHandler() {
@@ -126,10 +253,12 @@ class ScoreflexRestClient {
 			@Override
 			public void onFailure(Throwable e, Response errorResponse) {
 
-				// Post to vault on network error
+				// Post to vault on network error or timeout
 				if (e instanceof NoHttpResponseException
 						|| e instanceof UnknownHostException
-						|| e instanceof SocketException) {
+						|| e instanceof SocketException
+						|| e instanceof InterruptedIOException
+						|| e instanceof ScoreflexCircuitBreaker.OpenException) {
 					try {
 						ScoreflexRequestVault.getDefaultVault().put(request);
 					} catch (JSONException e1) {
@@ -160,6 +289,25 @@ class ScoreflexRestClient {
 
 	}
 
+	/**
+	 * A POST request nobody is waiting on, saved to the
+	 * {@link ScoreflexRequestVault} right away so that it survives application
+	 * reboot. The vault sends it once the {@link ScoreflexTrafficShaper} opens a
+	 * transmission window it can share with other requests.
+	 *
+	 * @param resource
+	 * @param params
+	 */
+	protected static void postInBackground(String resource,
+			Scoreflex.RequestParams params) {
+		try {
+			ScoreflexRequestVault.getDefaultVault().put(
+					new Request(HttpMethod.POST, resource, params, null));
+		} catch (JSONException e) {
+			Log.e("Scoreflex", "Could not save request to vault", e);
+		}
+	}
+
 	/**
 	 * A PUT request
 	 *
@@ -204,11 +352,7 @@ class ScoreflexRestClient {
 	 */
 	protected static boolean fetchAnonymousAccessTokenIfNeeded(
 			Scoreflex.ResponseHandler onFetchedHandler) {
-		if (null == getAccessToken()) {
-			fetchAnonymousAccessToken(onFetchedHandler);
-			return true;
-		}
-		return false;
+		return ScoreflexTokenManager.getDefault().fetchIfNeeded(onFetchedHandler);
 	}
 
 	/**
@@ -227,13 +371,25 @@ class ScoreflexRestClient {
 	 * @param request
 	 */
 	protected static void requestAuthenticated(final Request request) {
+		requestAuthenticated(request, false);
+	}
+
+	/**
+	 * @param request
+	 * @param isRetry
+	 *          Whether the request already failed with an invalid access token,
+	 *          in which case it is not run again
+	 */
+	private static void requestAuthenticated(final Request request,
+			final boolean isRetry) {
 		if (null == request)
 			return;
 
-		String accessToken = getAccessToken();
+		final String accessToken = getAccessToken();
 
 		// User is authenticated
 		if (null != accessToken) {
+			ScoreflexTokenManager.getDefault().onTokenUsed();
 
 			// Add the access token to the params
 			Scoreflex.RequestParams params = request.getParams();
@@ -256,25 +412,22 @@ class ScoreflexRestClient {
 
 				@Override
 				public void onFailure(Throwable e, Scoreflex.Response errorResponse) {
-					Log.e("Scoreflex", "Request failed", e);
-					if (null != errorResponse
+					// Suspended requests are expected, and a stack trace does not
+					// tell more than the failure about a server error
+					if (!(e instanceof ScoreflexCircuitBreaker.OpenException))
+						Log.e("Scoreflex", "Request failed: " + e);
+					if (!isRetry
+							&& null != errorResponse
 							&& Scoreflex.ERROR_INVALID_ACCESS_TOKEN == errorResponse
 									.getErrorCode()) {
 
-						// null out the access token
-						setAccessToken(null, true);
-						setSID(null);
-						setPlayerId(null);
-
-						// retry in 60 secs
-						new Handler().postDelayed(new Runnable() {
-
-							@Override
-							public void run() {
-								requestAuthenticated(request);
-
-							}
-						}, RETRY_INTERVAL);
+						// Discard the token unless another request already did, and
+						// run again with the token fetched in its place
+						ScoreflexTokenManager.getDefault().invalidate(accessToken);
+						if (null == getAccessToken())
+							fetchAnonymousAccessTokenAndRunRequest(request, true);
+						else
+							requestAuthenticated(request, true);
 
 					} else {
 						if (null == request.getHandler())
@@ -299,11 +452,11 @@ class ScoreflexRestClient {
 
 		// User is not authenticated
 		// request a token
-		fetchAnonymousAccessTokenAndRunRequest(request);
+		fetchAnonymousAccessTokenAndRunRequest(request, isRetry);
 	}
 
 	/**
-	 * Thin wrapper to the {@link AsyncHttpClient} library
+	 * Signs a request and sends it through the {@link Transport}
 	 *
 	 * @param request
 	 */
@@ -314,6 +467,14 @@ class ScoreflexRestClient {
 			return;
 		}
 
+		// Fail right away while the server keeps failing this kind of request
+		final ScoreflexCircuitBreaker breaker = ScoreflexCircuitBreaker
+				.forResource(request.getResource());
+		if (!breaker.allowRequest()) {
+			failFast(request, breaker.newOpenException());
+			return;
+		}
+
 		// Decorate parameters
 		ScoreflexRequestParamsDecorator.decorate(request.getResource(),
 				request.getParams());
@@ -328,75 +489,179 @@ class ScoreflexRestClient {
 			headers[0] = authorizationHeader;
 		}
 
-		// Handler
-		JsonHttpResponseHandler jsonHandler = null;
-		if (null != request.getHandler()) {
-			jsonHandler = new JsonHttpResponseHandler() {
+		// Callback, also feeding the circuit breaker
+		Transport.Callback callback = new Transport.Callback() {
 
-				@Override
-				public void onFailure(Throwable arg0, JSONObject arg1) {
-					if (arg1 != null) {
-						if (Scoreflex.showDebug) {
-							Log.d("Scoreflex", "Requesting Error: " + arg1);
-						}
-						Scoreflex.setNetworkAvailable(true);
-						request.getHandler().onFailure(arg0, new Scoreflex.Response(arg1));
-					} else {
-						Scoreflex.setNetworkAvailable(false);
-						request.getHandler().onFailure(arg0, null);
-					}
+			@Override
+			public void onResponse(int statusCode, Header[] headers, JSONObject body) {
+				if (statusCode < 300 && null != body) {
+					breaker.onResult(null);
+					Scoreflex.setNetworkAvailable(true);
+					if (null != request.getHandler())
+						request.getHandler().onSuccess(statusCode, new Scoreflex.Response(body));
+					return;
 				}
 
-				@Override
-				public void onFailure(Throwable arg0, String arg1) {
-					Scoreflex.setNetworkAvailable(false);
-					request.getHandler().onFailure(arg0, null);
-				}
+				onFailure(statusCode < 300 ? new JSONException(
+						"Response is not a JSON object") : new HttpResponseException(
+						statusCode, "HTTP status " + statusCode), body);
+			}
 
-				@Override
-				public void onSuccess(int arg0, JSONObject arg1) {
+			@Override
+			public void onCachedResponse(Header[] headers, JSONObject body) {
+				// Neither the breaker nor the reachability learn anything from it
+				if (null != request.getHandler())
+					request.getHandler().onSuccess(200, new Scoreflex.Response(body));
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				onFailure(e, null);
+			}
+
+			private void onFailure(Throwable arg0, JSONObject arg1) {
+				breaker.onResult(arg0);
+				if (arg1 != null) {
+					if (Scoreflex.showDebug) {
+						Log.d("Scoreflex", "Requesting Error: " + arg1);
+					}
 					Scoreflex.setNetworkAvailable(true);
-					request.getHandler().onSuccess(arg0, new Scoreflex.Response(arg1));
+					if (null != request.getHandler())
+						request.getHandler().onFailure(arg0, new Scoreflex.Response(arg1));
+				} else {
+					Scoreflex.setNetworkAvailable(false);
+					if (null != request.getHandler())
+						request.getHandler().onFailure(arg0, null);
 				}
-			};
-		}
+			}
+		};
 
 		String url = ScoreflexUriHelper.getAbsoluteUrl(request.getResource());
 		if (Scoreflex.showDebug) {
 			Log.d("Scoreflex", "requesting url["+request.getMethod()+"]: "+ url + "?" + request.getParams().getURLEncodedString());
 		}
-		// TODO: support other contentTypes such as "application/json"
-		String contentType = "application/x-www-form-urlencoded";
+		String contentType = null != request.getBody() ? "application/json"
+				: "application/x-www-form-urlencoded";
+		HttpUriRequest httpRequest = null;
+		HttpEntityEnclosingRequestBase entityRequest = null;
 		switch (request.getMethod()) {
 		case GET:
-			sClient.get(null, url, headers, request.getParams(), jsonHandler);
+			httpRequest = new HttpGet(AsyncHttpClient.getUrlWithQueryString(url,
+					request.getParams()));
 			break;
 		case PUT:
-			sClient.put(null, url, headers, request.getParams() != null ? request
-					.getParams().getEntity() : null, contentType, jsonHandler);
+			httpRequest = entityRequest = new HttpPut(getEntityUrl(url, request));
 			break;
 		case POST:
-			sClient.post(null, url, headers, request.getParams(), contentType,
-					jsonHandler);
+			httpRequest = entityRequest = new HttpPost(getEntityUrl(url, request));
 			break;
 		case DELETE:
-			sClient.delete(null, url, headers, jsonHandler);
+			httpRequest = new HttpDelete(url);
 			break;
 		}
+
+		if (null != headers)
+			httpRequest.setHeaders(headers);
+		if (null != entityRequest) {
+			HttpEntity entity = null;
+			if (null != request.getBody())
+				entity = new ByteArrayEntity(request.getBodyBytes());
+			else if (null != request.getParams())
+				entity = request.getParams().getEntity();
+			if (null != entity)
+				entityRequest.setEntity(sCompressRequests ? compress(entity) : entity);
+			entityRequest.addHeader("Content-Type", contentType);
+		}
+		sTransport.send(httpRequest, callback);
 	}
 
+	/**
+	 * Returns the URL of a POST or PUT request, the parameters going to the
+	 * query string when the body is JSON.
+	 */
+	private static String getEntityUrl(String url, Request request) {
+		if (null == request.getBody())
+			return url;
+		return AsyncHttpClient.getUrlWithQueryString(url, request.getParams());
+	}
+
+	/**
+	 * Gzips a request body of at least {@link #COMPRESSION_THRESHOLD} bytes.
+	 * The signature covers the parameters and not the bytes sent, so it is
+	 * unchanged by the compression.
+	 *
+	 * @param entity
+	 * @return The compressed entity, or the given one if it is too small, of
+	 *         unknown length, already encoded or not made smaller
+	 */
+	private static HttpEntity compress(HttpEntity entity) {
+		if (null == entity || null != entity.getContentEncoding()
+				|| entity.getContentLength() < COMPRESSION_THRESHOLD
+				|| !entity.isRepeatable())
+			return entity;
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					(int) entity.getContentLength() / 4);
+			GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+			entity.writeTo(gzip);
+			gzip.close();
+			if (bytes.size() >= entity.getContentLength())
+				return entity;
+
+			ByteArrayEntity compressed = new ByteArrayEntity(bytes.toByteArray());
+			compressed.setContentEncoding("gzip");
+			compressed.setContentType(entity.getContentType());
+			return compressed;
+		} catch (IOException e) {
+			Log.e("Scoreflex", "Could not compress request body", e);
+			return entity;
+		}
+	}
+
+	/**
+	 * Reports a request that was not sent as failed, on the calling thread's
+	 * looper if it has one as the AsyncHttpClient callbacks are
+	 *
+	 * @param request
+	 * @param e
+	 */
+	private static void failFast(final Request request, final Throwable e) {
+		if (null == request.getHandler())
+			return;
+
+		Runnable failure = new Runnable() {
+
+			@Override
+			public void run() {
+				request.getHandler().onFailure(e, null);
+			}
+		};
+		if (null != Looper.myLooper())
+			new Handler().post(failure);
+		else
+			failure.run();
+	}
+
+	/**
+	 * Fetches a new anonymous access token, or waits for the one being fetched
+	 * (@see {@link ScoreflexTokenManager#fetch(Scoreflex.ResponseHandler)}).
+	 *
+	 * @param handler
+	 */
 	protected static void fetchAnonymousAccessToken(
 			final Scoreflex.ResponseHandler handler) {
-		fetchAnonymousAccessToken(handler, 0);
+		ScoreflexTokenManager.getDefault().fetch(handler);
 	}
 
-	protected static void fetchAnonymousAccessToken(
-			final Scoreflex.ResponseHandler handler, final int nbRetries) {
-		if (sIsFetchingAnonymousAccessToken) {
-			queueHandler(handler);
-			return;
-		}
-		sIsFetchingAnonymousAccessToken = true;
+	/**
+	 * Sends the request of an anonymous access token, to be called by the
+	 * {@link ScoreflexTokenManager} only.
+	 *
+	 * @param handler
+	 */
+	protected static void requestAnonymousAccessToken(
+			Scoreflex.ResponseHandler handler) {
 		Scoreflex.RequestParams authParams = new Scoreflex.RequestParams();
 		authParams.put("clientId", Scoreflex.getClientId());
 		authParams.put("devicePlatform", "Android");
@@ -407,232 +672,93 @@ class ScoreflexRestClient {
 
 		String resource = "/oauth/anonymousAccessToken";
 
-		request(new Request(HttpMethod.POST, resource, authParams,
-				new Scoreflex.ResponseHandler() {
-
-					@Override
-					public void onFailure(Throwable e, Response errorResponse) {
-
-						if (nbRetries <= 0) {
-							Log.e("Scoreflex", "Error request anonymous access token (aborting):"
-									+ (errorResponse != null ? errorResponse.getJSONObject()
-											.toString() : " null error response, aborting"), e);
-
-							sIsFetchingAnonymousAccessToken = false;
-							if (null != handler) {
-								handler.onFailure(e, errorResponse);
-							}
-							Scoreflex.ResponseHandler chainedHandler = null;
-							while ((chainedHandler = dequeueHandler()) != null) {
-								chainedHandler.onFailure(e, errorResponse);
-							}
-							return;
-						}
-						Log.e("Scoreflex", "Error request anonymous access token (retrying : "+nbRetries+"):"
-								+ (errorResponse != null ? errorResponse.getJSONObject()
-										.toString() : " null error response, retrying"), e);
-
-						new Handler().postDelayed(new Runnable() {
-
-							@Override
-							public void run() {
-								sIsFetchingAnonymousAccessToken = false;
-								fetchAnonymousAccessToken(handler, nbRetries -1);
-							}
-						}, RETRY_INTERVAL);
-					}
-
-					@Override
-					public void onSuccess(int statusCode, Response response) {
-						// Parse response
-						JSONObject json = response.getJSONObject();
-						if (json.has("accessToken") && json.has("sid")) {
-							JSONObject accessToken = json.optJSONObject("accessToken");
-							String sid = json.optString("sid");
-							JSONObject meObject = json.optJSONObject("me");
-							String playerId = meObject.optString("id");
-							if (null != accessToken && accessToken.has("token")) {
-								String token = accessToken.optString("token");
-
-								// Store access token
-								setAccessToken(token, true);
-								setSID(sid);
-								setPlayerId(playerId);
-								sIsFetchingAnonymousAccessToken = false;
-
-								Intent intent = new Intent(Scoreflex.INTENT_USER_LOGED_IN);
-								intent.putExtra(Scoreflex.INTENT_USER_LOGED_IN_EXTRA_SID, sid);
-								intent.putExtra(
-										Scoreflex.INTENT_USER_LOGED_IN_EXTRA_ACCESS_TOKEN, token);
-								LocalBroadcastManager.getInstance(
-										Scoreflex.getApplicationContext()).sendBroadcast(intent);
-
-								// call handlers
-								if (null != handler) {
-									handler.onSuccess(statusCode, response);
-								}
-								Scoreflex.ResponseHandler chainedHandler = null;
-								while ((chainedHandler = dequeueHandler()) != null) {
-									chainedHandler.onSuccess(statusCode, response);
-								}
-								return;
-							}
-						}
-						Log.e("Scoreflex",
-								"Could not obtain anonymous access token from server");
-
-					}
-
-					@Override
-					public void onSuccess(Response response) {
-
-					}
-
-				}));
-
+		request(new Request(HttpMethod.POST, resource, authParams, handler));
 	}
 
 	/**
 	 * Fetches an anonymous access token and run the given request with that
-	 * token. Retries when access token cannot be fetched.
+	 * token. The request fails if the access token cannot be fetched.
 	 *
 	 * @param request
 	 *          The request to be run
 	 */
 	public static void fetchAnonymousAccessTokenAndRunRequest(
 			final Request request) {
+		fetchAnonymousAccessTokenAndRunRequest(request, false);
+	}
+
+	private static void fetchAnonymousAccessTokenAndRunRequest(
+			final Request request, final boolean isRetry) {
 		fetchAnonymousAccessToken(new Scoreflex.ResponseHandler() {
 
 			@Override
 			public void onSuccess(Response response) {
-				requestAuthenticated(request);
+				requestAuthenticated(request, isRetry);
 			}
 
 			@Override
 			public void onFailure(Throwable e, Response errorResponse) {
-
+				if (null != request.getHandler())
+					request.getHandler().onFailure(e, errorResponse);
 			}
 		});
 	}
 
-	private static void queueHandler(Scoreflex.ResponseHandler handler) {
-		if (null == handler) {
-			return;
-		}
-
-		synchronized (sPendingHandlers) {
-			sPendingHandlers.add(handler);
-		}
-	}
-
-	private static Scoreflex.ResponseHandler dequeueHandler() {
-		Scoreflex.ResponseHandler handler = null;
-		synchronized (sPendingHandlers) {
-			if (sPendingHandlers.size() > 0) {
-				handler = sPendingHandlers.get(0);
-				if (null != handler) {
-					sPendingHandlers.remove(0);
-				}
-			}
-		}
-		return handler;
-	}
-
 	/**
-	 * Get the access token stored in the user's shared preferences.
+	 * Get the access token of the player.
 	 *
 	 * @return
 	 */
 
 	protected static String getAccessToken() {
-		SharedPreferences prefs = Scoreflex.getSharedPreferences();
-		if (null == prefs) {
-			return null;
-		}
-		String token = prefs.getString(ACCESS_TOKEN_PREF_NAME, null);
-		return token;
+		return ScoreflexCredentialStore.getDefault().get().getAccessToken();
 	}
 
 	/**
-	 * Is the access token stored in the user's shared preferences anonymous ?
+	 * Is the access token of the player anonymous ?
 	 *
 	 * @return
 	 */
 
 	protected static boolean getAccessTokenIsAnonymous() {
-		SharedPreferences prefs = Scoreflex.getSharedPreferences();
-		if (null == prefs) {
-			return true;
-		}
-		return prefs.getBoolean(ACCESS_TOKEN_IS_ANONYMOUS_PREF_NAME, true);
+		return ScoreflexCredentialStore.getDefault().get().isAnonymous();
 	}
 
 	/**
-	 * Set the SID stored in the user's shared preferences.
+	 * Set the SID of the player.
 	 *
-	 * @param accessToken
-	 *          The access token to be stored
+	 * @param sid
+	 *          The SID to be stored
 	 */
 	protected static void setSID(String sid) {
-
-		SharedPreferences preferences = Scoreflex.getSharedPreferences();
-		SharedPreferences.Editor editor = preferences.edit();
-		if (null == sid)
-			editor.remove(SID_PREF_NAME);
-		else
-			editor.putString(SID_PREF_NAME, sid);
-		editor.commit();
-
+		ScoreflexCredentialStore.getDefault().setSID(sid);
 	}
 
 	protected static void setPlayerId(String playerId) {
-		SharedPreferences preferences = Scoreflex.getSharedPreferences();
-		SharedPreferences.Editor editor = preferences.edit();
-		if (null == playerId)
-			editor.remove(PLAYER_ID_PREF_NAME);
-		editor.putString(PLAYER_ID_PREF_NAME, playerId);
-		editor.commit();
-
+		ScoreflexCredentialStore.getDefault().setPlayerId(playerId);
 	}
 
 	protected static String getPlayerId(Context applicationContext) {
-		SharedPreferences prefs = Scoreflex
-				.getSharedPreferences(applicationContext);
-		if (null == prefs) {
-			return null;
-		}
-		String playerId = prefs.getString(PLAYER_ID_PREF_NAME, null);
-		return playerId;
-
+		return ScoreflexCredentialStore.getDefault().get(applicationContext)
+				.getPlayerId();
 	}
 
 	protected static String getPlayerId() {
-		SharedPreferences prefs = Scoreflex.getSharedPreferences();
-		if (null == prefs) {
-			return null;
-		}
-		String playerId = prefs.getString(PLAYER_ID_PREF_NAME, null);
-		return playerId;
-
+		return ScoreflexCredentialStore.getDefault().get().getPlayerId();
 	}
 
 	/**
-	 * Get the access token stored in the user's shared preferences.
+	 * Get the SID of the player.
 	 *
 	 * @return
 	 */
 
 	protected static String getSID() {
-		SharedPreferences prefs = Scoreflex.getSharedPreferences();
-		if (null == prefs) {
-			return null;
-		}
-		String sid = prefs.getString(SID_PREF_NAME, null);
-		return sid;
+		return ScoreflexCredentialStore.getDefault().get().getSID();
 	}
 
 	/**
-	 * Set the access token stored in the user's shared preferences.
+	 * Set the access token of the player.
 	 *
 	 * @param accessToken
 	 *          The access token to be stored
@@ -640,17 +766,38 @@ class ScoreflexRestClient {
 	 *          Is this access token anonymous
 	 */
 	protected static void setAccessToken(String accessToken, boolean isAnonymous) {
-		SharedPreferences preferences = Scoreflex.getSharedPreferences();
-		SharedPreferences.Editor editor = preferences.edit();
-		if (null == accessToken) {
-			editor.remove(ACCESS_TOKEN_PREF_NAME);
-			editor.remove(ACCESS_TOKEN_IS_ANONYMOUS_PREF_NAME);
-		} else {
-			editor.putString(ACCESS_TOKEN_PREF_NAME, accessToken);
-			editor.putBoolean(ACCESS_TOKEN_IS_ANONYMOUS_PREF_NAME, isAnonymous);
-		}
-		editor.commit();
+		ScoreflexCredentialStore.getDefault().setAccessToken(accessToken,
+				isAnonymous);
+		ScoreflexTokenManager.getDefault().onTokenChanged(accessToken);
+	}
 
+	/**
+	 * Removes the access token, SID and player id of the player if the access
+	 * token is the given one.
+	 *
+	 * @param accessToken
+	 * @return Whether they were removed
+	 */
+	protected static boolean invalidateAccessToken(String accessToken) {
+		if (!ScoreflexCredentialStore.getDefault().invalidate(accessToken))
+			return false;
+		ScoreflexTokenManager.getDefault().onTokenChanged(null);
+		return true;
+	}
+
+	/**
+	 * Set the access token, SID and player id of the player at once.
+	 *
+	 * @param accessToken
+	 * @param isAnonymous
+	 * @param sid
+	 * @param playerId
+	 */
+	protected static void setCredentials(String accessToken,
+			boolean isAnonymous, String sid, String playerId) {
+		ScoreflexCredentialStore.getDefault().set(accessToken, isAnonymous, sid,
+				playerId);
+		ScoreflexTokenManager.getDefault().onTokenChanged(accessToken);
 	}
 
 	/**
@@ -663,7 +810,11 @@ class ScoreflexRestClient {
 		HttpMethod mMethod;
 		Scoreflex.RequestParams mParams;
 		Scoreflex.ResponseHandler mHandler;
+		JSONObject mBody;
+		byte[] mBodyBytes;
 		String mResource;
+		String mLane;
+		long mTimeToLive;
 
 		public Request(HttpMethod method, String resource,
 				Scoreflex.RequestParams params, Scoreflex.ResponseHandler handler) {
@@ -684,6 +835,8 @@ class ScoreflexRestClient {
 				String key = keys.next();
 				mParams.put(key, paramsJson.getString(key));
 			}
+			mLane = data.optString("lane", null);
+			mBody = data.optJSONObject("body");
 		}
 
 		public JSONObject toJSON() throws JSONException {
@@ -695,6 +848,10 @@ class ScoreflexRestClient {
 				for (String key : mParams.getParamNames())
 					params.put(key, mParams.getParamValue(key));
 			result.put("params", params);
+			if (null != mLane)
+				result.put("lane", mLane);
+			if (null != mBody)
+				result.put("body", mBody);
 			return result;
 		}
 
@@ -702,6 +859,13 @@ class ScoreflexRestClient {
 			return mMethod;
 		}
 
+		/**
+		 * @return The HTTP method name, such as POST
+		 */
+		public String getMethodName() {
+			return mMethod.name();
+		}
+
 		public Scoreflex.RequestParams getParams() {
 			return mParams;
 		}
@@ -714,6 +878,37 @@ class ScoreflexRestClient {
 			return mResource;
 		}
 
+		/**
+		 * @return The JSON body, null if the parameters are sent form encoded
+		 */
+		public JSONObject getBody() {
+			return mBody;
+		}
+
+		/**
+		 * Returns the UTF-8 bytes of the JSON body, serialized on the first call
+		 * only so that the signature and the request share them.
+		 *
+		 * @return The body bytes, null if there is no JSON body
+		 */
+		public byte[] getBodyBytes() {
+			if (null == mBodyBytes && null != mBody) {
+				try {
+					mBodyBytes = mBody.toString().getBytes("UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new Error(e);
+				}
+			}
+			return mBodyBytes;
+		}
+
+		/**
+		 * @return The vault lane the request is replayed from, null if unspecified
+		 */
+		public String getLane() {
+			return mLane;
+		}
+
 		public void setMethod(HttpMethod mMethod) {
 			this.mMethod = mMethod;
 		}
@@ -730,9 +925,41 @@ class ScoreflexRestClient {
 			this.mResource = resource;
 		}
 
+		/**
+		 * Sends a JSON body, the parameters going to the query string.
+		 *
+		 * @param body
+		 */
+		public void setBody(JSONObject body) {
+			this.mBody = body;
+			this.mBodyBytes = null;
+		}
+
+		public void setLane(String lane) {
+			this.mLane = lane;
+		}
+
+		/**
+		 * @return The time in milliseconds after which the request is dropped
+		 *         from the vault, {@link Scoreflex#TIME_TO_LIVE_DEFAULT} if
+		 *         unspecified
+		 */
+		public long getTimeToLive() {
+			return mTimeToLive;
+		}
+
+		public void setTimeToLive(long timeToLive) {
+			this.mTimeToLive = timeToLive;
+		}
+
 		@Override
 		protected Object clone() {
-			return new Request(mMethod, mResource, mParams, mHandler);
+			Request clone = new Request(mMethod, mResource, mParams, mHandler);
+			clone.setLane(mLane);
+			clone.setTimeToLive(mTimeToLive);
+			clone.mBody = mBody;
+			clone.mBodyBytes = getBodyBytes();
+			return clone;
 		}
 
 		/**
@@ -740,94 +967,21 @@ class ScoreflexRestClient {
 		 *
 		 * @return The authorization header or null for GET requests
 		 */
-		@SuppressLint("DefaultLocale")
 		protected BasicHeader getAuthorizationHeader() {
-			try {
-				StringBuilder sb = new StringBuilder();
-
-				// Step 1: add HTTP method uppercase
-				switch (mMethod) {
-				case POST:
-					sb.append("POST");
-					break;
-				case PUT:
-					sb.append("PUT");
-					break;
-				case GET:
-					// No authorization header for GET requests
-					return null;
-				case DELETE:
-					sb.append("DELETE");
-					break;
-				}
-
-				sb.append('&');
-
-				// Step 2: add the URI
-				Uri uri = Uri.parse(mResource);
-
-				// Query string is stripped from resource
-				sb.append(encode(String.format("%s%s", Scoreflex.getBaseURL(),
-						uri.getEncodedPath())));
-
-				// Step 3: add URL encoded parameters
-				sb.append('&');
-				TreeSet<String> paramNames = new TreeSet<String>();
-
-				// Params from the URL
-				Scoreflex.RequestParams queryStringParams = QueryStringParser
-						.getRequestParams(uri.getQuery());
-				if (null != queryStringParams)
-					paramNames.addAll(queryStringParams.getParamNames());
-
-				// Params from the request
-				if (null != mParams)
-					paramNames.addAll(mParams.getParamNames());
-
-				if (paramNames.size() > 0) {
-
-					String last = paramNames.last();
-					for (String paramName : paramNames) {
-						String paramValue = null;
-
-						if (null != mParams)
-							paramValue = mParams.getParamValue(paramName);
-
-						if (null == paramValue && null != queryStringParams)
-							paramValue = queryStringParams.getParamValue(paramName);
-
-						sb.append(encode(String.format("%s=%s", encode(paramName),
-								encode(paramValue))));
-						if (!last.equals(paramName))
-							sb.append("%26");
-
-					}
-				}
+			// No authorization header for GET requests
+			if (HttpMethod.GET == mMethod)
+				return null;
 
-				// Step 4: add body
-				sb.append('&');
-				// TODO: add the body here when we support other content types
-				// than application/x-www-form-urlencoded
-				Mac mac = Mac.getInstance("HmacSHA1");
-				SecretKeySpec secret = new SecretKeySpec(Scoreflex.getClientSecret()
-						.getBytes("UTF-8"), mac.getAlgorithm());
-				mac.init(secret);
-				byte[] digest = mac.doFinal(sb.toString().getBytes());
-				String sig = Base64.encodeToString(digest, Base64.DEFAULT).trim();
-				String encodedSig = encode(sig.trim());
-				BasicHeader result = new BasicHeader("X-Scoreflex-Authorization",
-						String.format("Scoreflex sig=\"%s\", meth=\"0\"", encodedSig));
-				return result;
+			try {
+				return new BasicHeader("X-Scoreflex-Authorization",
+						ScoreflexRequestSigner.getAuthorization(mMethod.name(), mResource,
+								mParams, getBodyBytes()));
 			} catch (Exception e) {
 				Log.e("Scoreflex", "Could not generate signature", e);
 				return null;
 			}
 		}
 
-		private static String encode(String s) throws UnsupportedEncodingException {
-			return URLEncoder.encode(s, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
-		}
-
 		@Override
 		public String toString() {
 			String method = null;
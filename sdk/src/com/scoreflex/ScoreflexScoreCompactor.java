@@ -0,0 +1,112 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+/**
+ * A {@link ScoreflexJobQueue.Compactor} keeping a single queued score
+ * submission per leaderboard and player, according to the leaderboard's
+ * compaction policy.
+ *
+ *
+ */
+class ScoreflexScoreCompactor implements ScoreflexJobQueue.Compactor {
+
+	private static final String SCORES_RESOURCE_PREFIX = "/scores/";
+
+	private static int sDefaultPolicy = Scoreflex.SCORE_COMPACTION_KEEP_HIGHEST;
+	private static ConcurrentHashMap<String, Integer> sPolicies = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Sets the compaction policy of a leaderboard.
+	 *
+	 * @param leaderboardId
+	 *          The leaderboard id, null to set the policy of the leaderboards
+	 *          without one
+	 * @param policy
+	 *          One of the Scoreflex.SCORE_COMPACTION_* constants
+	 */
+	protected static void setPolicy(String leaderboardId, int policy) {
+		if (null == leaderboardId)
+			sDefaultPolicy = policy;
+		else
+			sPolicies.put(leaderboardId, policy);
+	}
+
+	protected static int getPolicy(String leaderboardId) {
+		Integer policy = sPolicies.get(leaderboardId);
+		return null != policy ? policy.intValue() : sDefaultPolicy;
+	}
+
+	@Override
+	public String getCompactionKey(JSONObject jobDescription) {
+		String resource = jobDescription.optString("resource");
+		if (!resource.startsWith(SCORES_RESOURCE_PREFIX))
+			return null;
+
+		String leaderboardId = resource.substring(SCORES_RESOURCE_PREFIX.length());
+		if (0 == leaderboardId.length() || -1 != leaderboardId.indexOf('/')
+				|| -1 != leaderboardId.indexOf('?'))
+			return null;
+
+		if (Scoreflex.SCORE_COMPACTION_NONE == getPolicy(leaderboardId))
+			return null;
+
+		JSONObject params = jobDescription.optJSONObject("params");
+		if (null == params || null == getScore(jobDescription))
+			return null;
+
+		// Scores of different players never supersede each other
+		return resource + '\n' + params.optString("accessToken");
+	}
+
+	@Override
+	public boolean supersedes(JSONObject posted, JSONObject queued) {
+		String resource = posted.optString("resource");
+		String leaderboardId = resource.substring(SCORES_RESOURCE_PREFIX.length());
+		long postedScore = getScore(posted).longValue();
+		long queuedScore = getScore(queued).longValue();
+
+		switch (getPolicy(leaderboardId)) {
+		case Scoreflex.SCORE_COMPACTION_KEEP_HIGHEST:
+			return postedScore >= queuedScore;
+		case Scoreflex.SCORE_COMPACTION_KEEP_LOWEST:
+			return postedScore <= queuedScore;
+		default:
+			return true;
+		}
+	}
+
+	private static Long getScore(JSONObject jobDescription) {
+		JSONObject params = jobDescription.optJSONObject("params");
+		if (null == params)
+			return null;
+
+		try {
+			return Long.valueOf(params.optString("score"));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+}
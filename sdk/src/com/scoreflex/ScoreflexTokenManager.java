@@ -0,0 +1,286 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.scoreflex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import com.scoreflex.Scoreflex.Response;
+
+/**
+ * Obtains the anonymous access tokens, making sure that a single token
+ * request is in flight at any time whatever the number of requests waiting
+ * for a token.
+ *
+ * The manager is {@link State#VALID} once it obtained a token,
+ * {@link State#REFRESHING} while a token request is in flight and
+ * {@link State#FAILED} when it holds no usable token, either because the
+ * last token request failed or because the token was invalidated. Callers
+ * asking for a token while one is being fetched wait for that fetch instead
+ * of starting theirs. After a failed fetch, callers are failed right away
+ * until a retry delay, doubling with each failure, elapsed.
+ *
+ * A token whose lifetime is known is refreshed in the background once most
+ * of it elapsed, requests keeping on using it meanwhile. A token reported
+ * invalid is only discarded if it is still the current one, so that the
+ * requests that failed with it do not each discard the token fetched after
+ * the first failure.
+ *
+ *
+ */
+class ScoreflexTokenManager {
+
+	private static final long MIN_RETRY_DELAY = 1000;
+	private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+	/**
+	 * The part of the lifetime of a token after which it is refreshed.
+	 */
+	private static final float REFRESH_RATIO = 0.8f;
+
+	public enum State {
+		VALID, REFRESHING, FAILED
+	}
+
+	private static ScoreflexTokenManager sDefaultManager;
+
+	/**
+	 * Returns the manager of the SDK's anonymous access tokens, creating it on
+	 * first call.
+	 *
+	 * @return
+	 */
+	public static synchronized ScoreflexTokenManager getDefault() {
+		if (null == sDefaultManager)
+			sDefaultManager = new ScoreflexTokenManager();
+		return sDefaultManager;
+	}
+
+	private State mState = State.FAILED;
+	private List<Scoreflex.ResponseHandler> mWaiters = new ArrayList<Scoreflex.ResponseHandler>();
+	private int mGeneration;
+	private long mRefreshAt;
+	private long mRetryAt;
+	private long mRetryDelay = MIN_RETRY_DELAY;
+	private Throwable mLastError;
+	private Response mLastErrorResponse;
+
+	public synchronized State getState() {
+		return mState;
+	}
+
+	/**
+	 * Fetches an anonymous access token if none is stored.
+	 *
+	 * @param handler
+	 *          Called once the token is fetched or could not be, can be null
+	 * @return Whether the handler will be called, false if a token is stored
+	 */
+	public boolean fetchIfNeeded(Scoreflex.ResponseHandler handler) {
+		if (null != ScoreflexRestClient.getAccessToken())
+			return false;
+		fetch(handler);
+		return true;
+	}
+
+	/**
+	 * Fetches a new anonymous access token, or waits for the one being
+	 * fetched.
+	 *
+	 * @param handler
+	 *          Called once the token is fetched or could not be, can be null
+	 */
+	public void fetch(Scoreflex.ResponseHandler handler) {
+		int generation;
+		Throwable error;
+		Response errorResponse;
+		synchronized (this) {
+			if (State.REFRESHING == mState) {
+				if (null != handler)
+					mWaiters.add(handler);
+				return;
+			}
+
+			if (State.FAILED == mState
+					&& System.currentTimeMillis() < mRetryAt) {
+				generation = -1;
+				error = mLastError;
+				errorResponse = mLastErrorResponse;
+			} else {
+				if (null != handler)
+					mWaiters.add(handler);
+				mState = State.REFRESHING;
+				generation = mGeneration;
+				error = null;
+				errorResponse = null;
+			}
+		}
+
+		if (generation < 0) {
+			if (null != handler)
+				handler.onFailure(error, errorResponse);
+			return;
+		}
+		request(generation);
+	}
+
+	/**
+	 * Tells the manager a request is about to use the current token, starting
+	 * its refresh in the background if it is about to expire.
+	 */
+	public void onTokenUsed() {
+		int generation;
+		synchronized (this) {
+			if (State.VALID != mState || 0 == mRefreshAt
+					|| System.currentTimeMillis() < mRefreshAt)
+				return;
+
+			mState = State.REFRESHING;
+			generation = mGeneration;
+		}
+		request(generation);
+	}
+
+	/**
+	 * Discards a token the server rejected, if it is still the current one.
+	 *
+	 * @param token
+	 *          The token the request was sent with
+	 * @return Whether the token was discarded, false if it was already
+	 *         replaced
+	 */
+	public boolean invalidate(String token) {
+		return ScoreflexRestClient.invalidateAccessToken(token);
+	}
+
+	/**
+	 * Tells the manager the stored token changed, such as when the player
+	 * logged in or out, so that a token being fetched does not overwrite it.
+	 *
+	 * @param token
+	 *          The new token, null if it was removed
+	 */
+	public synchronized void onTokenChanged(String token) {
+		mGeneration++;
+		mRefreshAt = 0;
+		if (State.REFRESHING == mState)
+			return;
+
+		mState = null != token ? State.VALID : State.FAILED;
+		mRetryAt = 0;
+	}
+
+	private void request(final int generation) {
+		ScoreflexRestClient.requestAnonymousAccessToken(new Scoreflex.ResponseHandler() {
+
+			@Override
+			public void onFailure(Throwable e, Response errorResponse) {
+				Log.e("Scoreflex", "Error requesting anonymous access token: "
+						+ (null != errorResponse ? errorResponse.getJSONObject() : e));
+				List<Scoreflex.ResponseHandler> waiters;
+				synchronized (ScoreflexTokenManager.this) {
+					mLastError = e;
+					mLastErrorResponse = errorResponse;
+					mRetryAt = System.currentTimeMillis() + mRetryDelay;
+					if (null != ScoreflexRestClient.getAccessToken()) {
+						// Keep on using the current token, retrying a background
+						// refresh later
+						mState = State.VALID;
+						if (generation == mGeneration && 0 != mRefreshAt)
+							mRefreshAt = mRetryAt;
+					} else {
+						mState = State.FAILED;
+					}
+					mRetryDelay = Math.min(mRetryDelay * 2, MAX_RETRY_DELAY);
+					waiters = drainWaiters();
+				}
+				for (Scoreflex.ResponseHandler waiter : waiters)
+					waiter.onFailure(e, errorResponse);
+			}
+
+			@Override
+			public void onSuccess(int statusCode, Response response) {
+				JSONObject json = response.getJSONObject();
+				JSONObject accessToken = json.optJSONObject("accessToken");
+				JSONObject me = json.optJSONObject("me");
+				if (null == accessToken || !accessToken.has("token")
+						|| !json.has("sid") || null == me) {
+					onFailure(new JSONException(
+							"Could not obtain anonymous access token from server"), null);
+					return;
+				}
+
+				String token = accessToken.optString("token");
+				String sid = json.optString("sid");
+				List<Scoreflex.ResponseHandler> waiters;
+				synchronized (ScoreflexTokenManager.this) {
+					// Do not overwrite a token set while this one was fetched
+					boolean isCurrent = generation == mGeneration;
+					if (isCurrent) {
+						ScoreflexRestClient.setCredentials(token, true, sid,
+								me.optString("id"));
+						long expiresIn = accessToken.optLong("expiresIn", 0) * 1000;
+						mRefreshAt = expiresIn > 0 ? System.currentTimeMillis()
+								+ (long) (expiresIn * REFRESH_RATIO) : 0;
+					}
+					mState = State.VALID;
+					mRetryAt = 0;
+					mRetryDelay = MIN_RETRY_DELAY;
+					mLastError = null;
+					mLastErrorResponse = null;
+					waiters = drainWaiters();
+					if (!isCurrent)
+						token = null;
+				}
+
+				if (null != token) {
+					Intent intent = new Intent(Scoreflex.INTENT_USER_LOGED_IN);
+					intent.putExtra(Scoreflex.INTENT_USER_LOGED_IN_EXTRA_SID, sid);
+					intent.putExtra(Scoreflex.INTENT_USER_LOGED_IN_EXTRA_ACCESS_TOKEN,
+							token);
+					LocalBroadcastManager.getInstance(Scoreflex.getApplicationContext())
+							.sendBroadcast(intent);
+				}
+
+				for (Scoreflex.ResponseHandler waiter : waiters)
+					waiter.onSuccess(statusCode, response);
+			}
+
+			@Override
+			public void onSuccess(Response response) {
+
+			}
+		});
+	}
+
+	private List<Scoreflex.ResponseHandler> drainWaiters() {
+		List<Scoreflex.ResponseHandler> waiters = mWaiters;
+		mWaiters = new ArrayList<Scoreflex.ResponseHandler>();
+		return waiters;
+	}
+
+}
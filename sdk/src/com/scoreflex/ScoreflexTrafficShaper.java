@@ -0,0 +1,287 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Holds back the background traffic, which nobody is waiting on, so that it
+ * is sent in shared transmission windows instead of waking the cellular
+ * radio each time a request happens to be ready.
+ *
+ * A background request is sent right away while the radio is still active
+ * from a recent transmission, foreground requests included. Otherwise it
+ * waits for the next window, windows starting every period at a phase
+ * picked at random so that devices do not all transmit at the same time,
+ * but never for longer than the maximum delay. Everything waiting is sent as
+ * soon as any request wakes the radio.
+ *
+ * The time is read from a {@link Clock} and the held back tasks are run by
+ * an {@link Executor}, both of which can be replaced so that the shaper can
+ * be tested without a device.
+ *
+ *
+ */
+class ScoreflexTrafficShaper {
+
+	private static final long DEFAULT_PERIOD = 60 * 1000;
+	private static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+	/**
+	 * How long the radio stays active after a transmission.
+	 */
+	private static final long RADIO_TAIL = 5 * 1000;
+
+	/**
+	 * A source of time.
+	 *
+	 *
+	 */
+	public interface Clock {
+		/**
+		 * @return The current time in milliseconds since the epoch
+		 */
+		public long currentTimeMillis();
+	}
+
+	/**
+	 * The system clock.
+	 */
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private static ScoreflexTrafficShaper sDefaultShaper;
+
+	/**
+	 * Returns the shaper of the SDK's background traffic, creating it on first
+	 * call. Its tasks are run on the main thread.
+	 *
+	 * @return
+	 */
+	public static synchronized ScoreflexTrafficShaper getDefault() {
+		if (null == sDefaultShaper) {
+			final Handler handler = new Handler(Looper.getMainLooper());
+			sDefaultShaper = new ScoreflexTrafficShaper(SYSTEM_CLOCK,
+					new Executor() {
+
+						@Override
+						public void execute(Runnable command) {
+							handler.post(command);
+						}
+					});
+		}
+		return sDefaultShaper;
+	}
+
+	private Clock mClock;
+	private Executor mExecutor;
+	private ScheduledExecutorService mTimer;
+	private long mPeriod = DEFAULT_PERIOD;
+	private long mMaxDelay = DEFAULT_MAX_DELAY;
+	private long mPhase;
+	private long mLastTransmission;
+	private long mNextCheck;
+	private LinkedList<Pending> mPending = new LinkedList<Pending>();
+
+	/**
+	 * @param clock
+	 *          The clock deciding when tasks are due
+	 * @param executor
+	 *          The executor running the tasks once due
+	 */
+	public ScoreflexTrafficShaper(Clock clock, Executor executor) {
+		mClock = clock;
+		mExecutor = executor;
+		mPhase = (long) (new Random().nextDouble() * DEFAULT_PERIOD);
+		mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ScoreflexTrafficShaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets how often transmission windows start.
+	 *
+	 * @param period
+	 *          The period in milliseconds, 0 to send background traffic right
+	 *          away
+	 */
+	public synchronized void setPeriod(long period) {
+		mPeriod = Math.max(0, period);
+		if (0 != mPeriod)
+			mPhase %= mPeriod;
+		schedule();
+	}
+
+	/**
+	 * Sets the longest a background task is held back.
+	 *
+	 * @param maxDelay
+	 *          The delay in milliseconds
+	 */
+	public synchronized void setMaxDelay(long maxDelay) {
+		mMaxDelay = Math.max(0, maxDelay);
+		schedule();
+	}
+
+	/**
+	 * Returns the time at which background traffic that became ready at the
+	 * given time can be sent.
+	 *
+	 * @param readySince
+	 *          The time, on the shaper's clock, the traffic became ready at
+	 * @return A time on the shaper's clock, at most the current time if it can
+	 *         be sent right away
+	 */
+	public synchronized long getTransmissionTime(long readySince) {
+		long now = mClock.currentTimeMillis();
+		if (0 == mPeriod || now - mLastTransmission < RADIO_TAIL)
+			return now;
+
+		long sinceWindow = ((now - mPhase) % mPeriod + mPeriod) % mPeriod;
+		long nextWindow = 0 == sinceWindow ? now : now - sinceWindow + mPeriod;
+		return Math.min(nextWindow, readySince + mMaxDelay);
+	}
+
+	/**
+	 * Runs a background task once the radio is active or a window starts.
+	 *
+	 * @param task
+	 */
+	public void post(Runnable task) {
+		synchronized(this) {
+			mPending.add(new Pending(task, mClock.currentTimeMillis()));
+			schedule();
+		}
+	}
+
+	/**
+	 * Blocks until background traffic ready now can be sent.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitTransmission() throws InterruptedException {
+		long readySince = mClock.currentTimeMillis();
+		long delay;
+		while ((delay = getTransmissionTime(readySince)
+				- mClock.currentTimeMillis()) > 0)
+			wait(delay);
+	}
+
+	/**
+	 * Called when the radio is known to be active, because a request was sent
+	 * or because traffic has to be sent right away: everything held back is
+	 * sent now.
+	 */
+	public void onRadioActive() {
+		synchronized(this) {
+			mLastTransmission = mClock.currentTimeMillis();
+			notifyAll();
+			if (mPending.isEmpty())
+				return;
+		}
+		runDueTasks();
+	}
+
+	/**
+	 * Runs the tasks that are due on the shaper's clock, and schedules a check
+	 * for the next ones.
+	 */
+	public void runDueTasks() {
+		LinkedList<Runnable> due = new LinkedList<Runnable>();
+		synchronized(this) {
+			long now = mClock.currentTimeMillis();
+			Iterator<Pending> it = mPending.iterator();
+			while (it.hasNext()) {
+				Pending pending = it.next();
+				if (getTransmissionTime(pending.mReadySince) <= now) {
+					it.remove();
+					due.add(pending.mTask);
+				}
+			}
+			schedule();
+		}
+
+		for (Runnable task : due)
+			mExecutor.execute(task);
+	}
+
+	/**
+	 * Schedules a check for when the earliest pending task is due, unless one
+	 * is already scheduled by then. Must be called while holding the shaper's
+	 * lock.
+	 */
+	private void schedule() {
+		if (mPending.isEmpty())
+			return;
+
+		long next = Long.MAX_VALUE;
+		for (Pending pending : mPending)
+			next = Math.min(next, getTransmissionTime(pending.mReadySince));
+		if (0 != mNextCheck && mNextCheck <= next)
+			return;
+
+		final long check = next;
+		mNextCheck = check;
+		mTimer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized(ScoreflexTrafficShaper.this) {
+					if (check == mNextCheck)
+						mNextCheck = 0;
+				}
+				runDueTasks();
+			}
+		}, Math.max(0, next - mClock.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	private static class Pending {
+		protected Runnable mTask;
+		protected long mReadySince;
+
+		public Pending(Runnable task, long readySince) {
+			mTask = task;
+			mReadySince = readySince;
+		}
+	}
+
+}
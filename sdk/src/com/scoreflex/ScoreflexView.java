@@ -372,7 +372,7 @@ public class ScoreflexView extends FrameLayout {
 					params.getURLEncodedString());
 				mWebView.loadUrl(url);
 			}
-		}, 0);
+		});
 	}
 
 	/**
@@ -1077,9 +1077,7 @@ public class ScoreflexView extends FrameLayout {
 			String sid = json.optString("sid");
 			JSONObject meObject = json.optJSONObject("me");
 			String playerId = meObject.optString("id");
-			ScoreflexRestClient.setAccessToken(token, false);
-			ScoreflexRestClient.setSID(sid);
-			ScoreflexRestClient.setPlayerId(playerId);
+			ScoreflexRestClient.setCredentials(token, false, sid, playerId);
 
 			Intent intent = new Intent(Scoreflex.INTENT_USER_LOGED_IN);
 			intent.putExtra(Scoreflex.INTENT_USER_LOGED_IN_EXTRA_SID, sid);
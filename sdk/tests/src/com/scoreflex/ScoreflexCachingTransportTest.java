@@ -0,0 +1,170 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHeader;
+import org.json.JSONObject;
+
+/**
+ * Tests of {@link ScoreflexCachingTransport} in front of a stand-in
+ * transport.
+ *
+ *
+ */
+public class ScoreflexCachingTransportTest extends TestCase {
+
+	/**
+	 * A stand-in transport answering with a given status and headers.
+	 *
+	 *
+	 */
+	private static class StandInTransport implements
+			ScoreflexRestClient.Transport {
+		private List<HttpUriRequest> mRequests = new ArrayList<HttpUriRequest>();
+		private int mStatus = 200;
+		private Header[] mHeaders = new Header[0];
+
+		@Override
+		public void send(HttpUriRequest request, Callback callback) {
+			int status;
+			Header[] headers;
+			synchronized(this) {
+				mRequests.add(request);
+				status = mStatus;
+				headers = mHeaders;
+			}
+			callback.onResponse(status, headers, 304 == status ? null
+					: new JSONObject());
+		}
+	}
+
+	/**
+	 * Records how a response was delivered.
+	 *
+	 *
+	 */
+	private static class Delivery implements
+			ScoreflexRestClient.Transport.Callback {
+		private CountDownLatch mDone = new CountDownLatch(1);
+		private int mStatus;
+		private boolean mCached;
+
+		@Override
+		public void onResponse(int statusCode, Header[] headers, JSONObject body) {
+			mStatus = statusCode;
+			mDone.countDown();
+		}
+
+		@Override
+		public void onCachedResponse(Header[] headers, JSONObject body) {
+			mStatus = 200;
+			mCached = true;
+			mDone.countDown();
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			mDone.countDown();
+		}
+
+		public Delivery await() throws InterruptedException {
+			assertTrue(mDone.await(5, TimeUnit.SECONDS));
+			return this;
+		}
+	}
+
+	private File mDirectory;
+	private StandInTransport mServer = new StandInTransport();
+	private ScoreflexCachingTransport mTransport;
+
+	@Override
+	protected void setUp() throws Exception {
+		mDirectory = File.createTempFile("scoreflex_http", "");
+		mDirectory.delete();
+		mDirectory.mkdirs();
+		mTransport = new ScoreflexCachingTransport(mServer,
+				ScoreflexCachingTransport.DEFAULT_MAX_SIZE, mDirectory);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(mDirectory);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (null != files)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private Delivery get(String url) throws InterruptedException {
+		Delivery delivery = new Delivery();
+		mTransport.send(new HttpGet(url), delivery);
+		return delivery.await();
+	}
+
+	public void testFreshResponseIsServedFromTheCache() throws Exception {
+		mServer.mHeaders = new Header[] { new BasicHeader("Cache-Control",
+				"max-age=60") };
+		assertFalse(get("https://api.scoreflex.com/v1/players/me").mCached);
+		Delivery delivery = get("https://api.scoreflex.com/v1/players/me");
+		assertTrue(delivery.mCached);
+		assertEquals(1, mServer.mRequests.size());
+	}
+
+	public void testRevalidatedResponseIsLive() throws Exception {
+		mServer.mHeaders = new Header[] { new BasicHeader("ETag", "\"v1\"") };
+		get("https://api.scoreflex.com/v1/players/me");
+
+		mServer.mStatus = 304;
+		Delivery delivery = get("https://api.scoreflex.com/v1/players/me");
+		assertFalse(delivery.mCached);
+		assertEquals(200, delivery.mStatus);
+		assertEquals(2, mServer.mRequests.size());
+		assertEquals("\"v1\"", mServer.mRequests.get(1)
+				.getFirstHeader("If-None-Match").getValue());
+	}
+
+	public void testPingIsNeverCached() throws Exception {
+		mServer.mHeaders = new Header[] {
+				new BasicHeader("Cache-Control", "max-age=60"),
+				new BasicHeader("ETag", "\"v1\"") };
+		get("https://api.scoreflex.com/v1/network/ping");
+		Delivery delivery = get("https://api.scoreflex.com/v1/network/ping");
+		assertFalse(delivery.mCached);
+		assertEquals(2, mServer.mRequests.size());
+		assertNull(mServer.mRequests.get(1).getFirstHeader("If-None-Match"));
+	}
+
+}
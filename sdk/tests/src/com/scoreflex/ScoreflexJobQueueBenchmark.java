@@ -0,0 +1,128 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Contention benchmark of {@link ScoreflexJobQueue}: producer threads post
+ * jobs concurrently, as network callbacks, the UI thread and the vault
+ * thread do, and the enqueue throughput is logged for 1 to 8 producers. The
+ * time measured is the one producers spend in
+ * {@link ScoreflexJobQueue#postJobWithDescription(JSONObject, String)}, the
+ * jobs being persisted afterwards by the queue thread.
+ *
+ *
+ */
+public class ScoreflexJobQueueBenchmark extends TestCase {
+
+	private static final int[] PRODUCERS = { 1, 2, 4, 8 };
+	private static final int JOBS = 16000;
+	private static final int ROUNDS = 3;
+
+	private File mJournal;
+
+	@Override
+	protected void setUp() throws Exception {
+		mJournal = File.createTempFile("scoreflex_job_queue_benchmark", ".journal");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mJournal.delete();
+	}
+
+	public void testEnqueueThroughput() throws Exception {
+		// Warm up
+		measure(PRODUCERS[PRODUCERS.length - 1]);
+
+		for (int producers : PRODUCERS) {
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++)
+				best = Math.min(best, measure(producers));
+			Log.i("Scoreflex", producers + " producers: " + JOBS * 1000000000L
+					/ Math.max(1, best) + " jobs/s, " + best / JOBS + " ns/job");
+		}
+	}
+
+	/**
+	 * Posts {@link #JOBS} jobs from the given number of producer threads.
+	 *
+	 * @return The time, in nanoseconds, from the start of the producers to
+	 *         the last of them returning
+	 */
+	private long measure(int producers) throws Exception {
+		mJournal.delete();
+		final ScoreflexJobQueue queue = new ScoreflexJobQueue("benchmark", JOBS,
+				new ScoreflexJournalJobStore(mJournal));
+		assertTrue(queue.getReadyFuture().get());
+
+		final int jobsPerProducer = JOBS / producers;
+		final JSONObject[][] descriptions = new JSONObject[producers][jobsPerProducer];
+		for (int i = 0; i < producers; i++)
+			for (int j = 0; j < jobsPerProducer; j++)
+				descriptions[i][j] = new JSONObject().put("producer", i).put("n", j);
+
+		@SuppressWarnings("unchecked")
+		final Future<Boolean>[] persisted = new Future[producers];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			final int producer = i;
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					ScoreflexJobQueue.Job job = null;
+					for (JSONObject description : descriptions[producer])
+						job = queue.postJobWithDescription(description,
+								ScoreflexJobQueue.LANE_DEFAULT);
+					persisted[producer] = job.getPersistedFuture();
+				}
+			};
+			threads[i].start();
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		long elapsed = System.nanoTime() - startTime;
+
+		for (Future<Boolean> future : persisted)
+			assertTrue(future.get());
+		return elapsed;
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+/**
+ * Tests of {@link ScoreflexJobQueue} restored from its store and spill.
+ *
+ *
+ */
+public class ScoreflexJobQueueTest extends TestCase {
+
+	/**
+	 * An empty store whose sync blocks until released, as a slow disk would.
+	 *
+	 *
+	 */
+	private static class SlowStore implements ScoreflexJobStore {
+		private CountDownLatch mReleased = new CountDownLatch(1);
+
+		@Override
+		public List<JSONObject> restore() {
+			return new ArrayList<JSONObject>();
+		}
+
+		@Override
+		public void add(String id, JSONObject job) {
+		}
+
+		@Override
+		public void remove(String id) {
+		}
+
+		@Override
+		public boolean sync() {
+			try {
+				return mReleased.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public long getByteSize() {
+			return 0;
+		}
+	}
+
+	private File mJournal;
+	private File mSpill;
+
+	@Override
+	protected void setUp() throws Exception {
+		mJournal = File.createTempFile("scoreflex_job_queue", ".journal");
+		mSpill = File.createTempFile("scoreflex_job_queue", ".spill");
+		mJournal.delete();
+		mSpill.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mJournal.delete();
+		mSpill.delete();
+	}
+
+	private ScoreflexJobQueue createQueue() {
+		return new ScoreflexJobQueue("test", 3, new ScoreflexJournalJobStore(
+				mJournal), new ScoreflexJobSpill(mSpill, 1 << 20));
+	}
+
+	public void testFlushWaitsForRestoredJobs() throws Exception {
+		ScoreflexJobQueue queue = createQueue();
+		queue.getReadyFuture().get();
+		ScoreflexJobQueue.Job last = null;
+		for (int i = 0; i < 6; i++)
+			last = queue.postJobWithDescription(new JSONObject().put("n", i));
+		assertTrue(last.getPersistedFuture().get());
+
+		ScoreflexJobQueue restored = createQueue();
+		Future<Boolean> early = restored.flush(300);
+		assertTrue(restored.getReadyFuture().get());
+		Future<Boolean> flush = restored.flush(5000);
+		assertFalse(early.get());
+		assertFalse(flush.isDone());
+
+		for (int i = 0; i < 6; i++) {
+			ScoreflexJobQueue.Job job = restored.leaseJob(1000);
+			assertNotNull(job);
+			assertFalse(flush.isDone());
+			job.ack();
+		}
+		assertTrue(flush.get());
+	}
+
+	public void testSettersDoNotWaitForRestore() throws Exception {
+		SlowStore store = new SlowStore();
+		ScoreflexJobQueue queue = new ScoreflexJobQueue("test", 3, store);
+		Thread.sleep(100);
+		assertFalse(queue.getReadyFuture().isDone());
+
+		long start = System.currentTimeMillis();
+		queue.setCompactor(new ScoreflexScoreCompactor());
+		queue.setMaxLeases(4);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+
+		store.mReleased.countDown();
+		assertTrue(queue.getReadyFuture().get());
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+/**
+ * Tests of {@link ScoreflexJobSpill}.
+ *
+ *
+ */
+public class ScoreflexJobSpillTest extends TestCase {
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		mFile = File.createTempFile("scoreflex_job_spill", ".spill");
+		mFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+	}
+
+	private static JSONObject job(long sequence) throws Exception {
+		return new JSONObject().put("id", "job" + sequence).put("sequence",
+				sequence);
+	}
+
+	public void testLastSequenceIsRestored() throws Exception {
+		ScoreflexJobSpill spill = new ScoreflexJobSpill(mFile, 1 << 20);
+		assertEquals(0, spill.getLastSequence());
+		assertTrue(spill.append(job(5)));
+		assertTrue(spill.append(job(9)));
+
+		// A reposted job keeps its older sequence number
+		assertTrue(spill.append(job(7)));
+		assertEquals(9, spill.getLastSequence());
+		assertTrue(spill.sync());
+
+		ScoreflexJobSpill reopened = new ScoreflexJobSpill(mFile, 1 << 20);
+		assertEquals(3, reopened.size());
+		assertEquals(9, reopened.getLastSequence());
+
+		reopened.peek(3);
+		reopened.consume();
+		assertTrue(reopened.isEmpty());
+		assertEquals(0, reopened.getLastSequence());
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Tests of {@link ScoreflexPooledTransport} against an in-process stand-in
+ * HTTP server, which counts the connections it accepts so that their reuse
+ * can be checked and measured.
+ *
+ *
+ */
+public class ScoreflexPooledTransportTest extends TestCase {
+
+	/**
+	 * A minimal HTTP/1.1 server on the loopback interface, answering every
+	 * request with a JSON object holding its path. Connections are kept open
+	 * unless the request asks for them to be closed, and the response body is
+	 * gzipped when the request accepts it.
+	 *
+	 *
+	 */
+	private static class StandInServer implements Runnable {
+		private ServerSocket mServerSocket;
+		private List<Socket> mSockets = new ArrayList<Socket>();
+		private int mConnections;
+		private int mGzipped;
+
+		public StandInServer() throws IOException {
+			mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			new Thread(this, "StandInServer").start();
+		}
+
+		public String getUrl(String path) {
+			return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+		}
+
+		public synchronized int getConnections() {
+			return mConnections;
+		}
+
+		public synchronized int getGzipped() {
+			return mGzipped;
+		}
+
+		public synchronized void close() throws IOException {
+			mServerSocket.close();
+			for (Socket socket : mSockets)
+				socket.close();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final Socket socket;
+				try {
+					socket = mServerSocket.accept();
+				} catch (IOException e) {
+					return;
+				}
+				synchronized(this) {
+					mConnections++;
+					mSockets.add(socket);
+				}
+				try {
+					socket.setTcpNoDelay(true);
+				} catch (IOException e) {
+				}
+				new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							serve(socket);
+						} catch (IOException e) {
+							// Closed by the client or the test
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				}, "StandInServerConnection").start();
+			}
+		}
+
+		private void serve(Socket socket) throws IOException {
+			InputStream input = new BufferedInputStream(socket.getInputStream());
+			OutputStream output = socket.getOutputStream();
+			String requestLine;
+			while (null != (requestLine = readLine(input))) {
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while (null != (line = readLine(input)) && line.length() > 0) {
+					int colon = line.indexOf(':');
+					if (colon > 0)
+						headers.put(line.substring(0, colon).trim().toLowerCase(), line
+								.substring(colon + 1).trim());
+				}
+				String contentLength = headers.get("content-length");
+				if (null != contentLength)
+					input.skip(Long.parseLong(contentLength));
+
+				String path = requestLine.split(" ")[1];
+				byte[] body = ("{\"path\":" + JSONObject.quote(path) + "}")
+						.getBytes("UTF-8");
+				boolean gzip = "gzip".equals(headers.get("accept-encoding"));
+				if (gzip) {
+					ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+					GZIPOutputStream gzipOutput = new GZIPOutputStream(compressed);
+					gzipOutput.write(body);
+					gzipOutput.close();
+					body = compressed.toByteArray();
+					synchronized(this) {
+						mGzipped++;
+					}
+				}
+				boolean close = "close".equalsIgnoreCase(headers.get("connection"));
+
+				StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n");
+				response.append("Content-Type: application/json\r\n");
+				response.append("Content-Length: ").append(body.length).append("\r\n");
+				if (gzip)
+					response.append("Content-Encoding: gzip\r\n");
+				if (close)
+					response.append("Connection: close\r\n");
+				response.append("\r\n");
+				ByteArrayOutputStream message = new ByteArrayOutputStream();
+				message.write(response.toString().getBytes("US-ASCII"));
+				message.write(body);
+				output.write(message.toByteArray());
+				output.flush();
+				if (close)
+					return;
+			}
+		}
+
+		private static String readLine(InputStream input) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b;
+			while (-1 != (b = input.read())) {
+				if ('\n' == b)
+					return line.toString();
+				if ('\r' != b)
+					line.append((char) b);
+			}
+			return line.length() > 0 ? line.toString() : null;
+		}
+	}
+
+	/**
+	 * Records the response or the failure of a request.
+	 *
+	 *
+	 */
+	private static class Delivery implements
+			ScoreflexRestClient.Transport.Callback {
+		private CountDownLatch mDone = new CountDownLatch(1);
+		private int mStatus;
+		private JSONObject mBody;
+		private Throwable mFailure;
+
+		@Override
+		public void onResponse(int statusCode, Header[] headers, JSONObject body) {
+			mStatus = statusCode;
+			mBody = body;
+			mDone.countDown();
+		}
+
+		@Override
+		public void onCachedResponse(Header[] headers, JSONObject body) {
+			fail("The pooled transport does not cache");
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			mFailure = e;
+			mDone.countDown();
+		}
+
+		public Delivery await() throws InterruptedException {
+			assertTrue(mDone.await(10, TimeUnit.SECONDS));
+			return this;
+		}
+	}
+
+	private static final int MEASURED_REQUESTS = 100;
+
+	private StandInServer mServer;
+	private ScoreflexPooledTransport mTransport;
+
+	@Override
+	protected void setUp() throws Exception {
+		mServer = new StandInServer();
+		mTransport = new ScoreflexPooledTransport();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+	}
+
+	private Delivery send(HttpGet request) throws InterruptedException {
+		Delivery delivery = new Delivery();
+		mTransport.send(request, delivery);
+		return delivery.await();
+	}
+
+	public void testConsecutiveRequestsReuseTheConnection() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			Delivery delivery = send(new HttpGet(mServer.getUrl("/players/" + i)));
+			assertNull(delivery.mFailure);
+			assertEquals(200, delivery.mStatus);
+			assertEquals("/players/" + i, delivery.mBody.getString("path"));
+		}
+		assertEquals(1, mServer.getConnections());
+	}
+
+	public void testGzippedResponseIsInflated() throws Exception {
+		Delivery delivery = send(new HttpGet(mServer.getUrl("/players/me")));
+		assertEquals(1, mServer.getGzipped());
+		assertEquals("/players/me", delivery.mBody.getString("path"));
+	}
+
+	public void testUnreachableServerIsReportedAsFailure() throws Exception {
+		String url = mServer.getUrl("/players/me");
+		mServer.close();
+		Delivery delivery = send(new HttpGet(url));
+		assertTrue(delivery.mFailure instanceof IOException);
+	}
+
+	/**
+	 * Measures consecutive requests over a kept alive connection against
+	 * requests each opening its own. The stand-in server has no TLS and is on
+	 * the loopback interface, so only a TCP handshake without latency is
+	 * saved here: the figures compare the overhead of the pool, and its stale
+	 * connection check, with the cost of a new connection.
+	 */
+	public void testConnectionReuse() throws Exception {
+		// Warm up
+		send(new HttpGet(mServer.getUrl("/warmup")));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_REQUESTS; i++)
+			assertEquals(200, send(new HttpGet(mServer.getUrl("/kept"))).mStatus);
+		long kept = System.nanoTime() - start;
+		int connections = mServer.getConnections();
+
+		start = System.nanoTime();
+		for (int i = 0; i < MEASURED_REQUESTS; i++) {
+			HttpGet request = new HttpGet(mServer.getUrl("/closed"));
+			request.addHeader("Connection", "close");
+			assertEquals(200, send(request).mStatus);
+		}
+		long closed = System.nanoTime() - start;
+
+		assertEquals(1, connections);
+		// The first closed request still goes over the kept alive connection
+		assertEquals(MEASURED_REQUESTS, mServer.getConnections());
+		Log.i("Scoreflex", "Kept alive: " + kept / MEASURED_REQUESTS / 1000
+				+ " us/request, new connections: " + closed / MEASURED_REQUESTS / 1000
+				+ " us/request");
+	}
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.net.URLEncoder;
+import java.util.TreeSet;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+
+import android.net.Uri;
+import android.os.Debug;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Benchmark of {@link ScoreflexRequestSigner} against the signing code it
+ * replaced, which is kept here as a reference: both must produce the same
+ * signatures, and the time and allocations per signature of each are
+ * logged.
+ *
+ *
+ */
+public class ScoreflexRequestSignerBenchmark extends TestCase {
+
+	private static final int SIGNATURES = 20000;
+	private static final int ROUNDS = 3;
+
+	private static final String[] RESOURCES = { "/scores/leaderboard",
+			"/challenges/instances/1234/turns?score=99&a=%20b",
+			"/social/invitations/Facebook%3A1,Facebook%3A2" };
+
+	private String mClientSecret;
+	private String mBaseURL;
+	private Scoreflex.RequestParams mParams;
+
+	@Override
+	protected void setUp() throws Exception {
+		mClientSecret = (String) setStatic("sClientSecret", "s3cr€t");
+		mBaseURL = (String) setStatic("sBaseURL", "https://api.scoreflex.com/v1");
+
+		mParams = new Scoreflex.RequestParams();
+		mParams.put("accessToken", "tok+/= x");
+		mParams.put("score", "120");
+		mParams.put("meta", "{\"level\":\"é 漢 *~\"}");
+		for (int i = 0; i < 8; i++)
+			mParams.put("param" + i, "value number " + i);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		setStatic("sClientSecret", mClientSecret);
+		setStatic("sBaseURL", mBaseURL);
+	}
+
+	private static Object setStatic(String name, Object value) throws Exception {
+		Field field = Scoreflex.class.getDeclaredField(name);
+		field.setAccessible(true);
+		Object previous = field.get(null);
+		field.set(null, value);
+		return previous;
+	}
+
+	public void testSignaturesMatchTheReference() throws Exception {
+		for (String resource : RESOURCES)
+			for (String method : new String[] { "POST", "PUT", "DELETE" })
+				assertEquals(method + " " + resource, sign(method, resource, mParams),
+						ScoreflexRequestSigner.getAuthorization(method, resource, mParams));
+	}
+
+	public void testSigningCost() throws Exception {
+		// Warm up
+		measure(false);
+		measure(true);
+
+		long reference = Long.MAX_VALUE;
+		long signer = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			reference = Math.min(reference, measure(false));
+			signer = Math.min(signer, measure(true));
+		}
+		Log.i("Scoreflex", "Reference: " + reference / SIGNATURES
+				+ " ns/signature, signer: " + signer / SIGNATURES + " ns/signature");
+
+		Log.i("Scoreflex", "Reference: " + countAllocations(false)
+				+ ", signer: " + countAllocations(true));
+	}
+
+	/**
+	 * @return The time, in nanoseconds, {@link #SIGNATURES} signatures take
+	 */
+	private long measure(boolean signer) throws Exception {
+		String resource = RESOURCES[1];
+		long start = System.nanoTime();
+		for (int i = 0; i < SIGNATURES; i++) {
+			if (signer)
+				ScoreflexRequestSigner.getAuthorization("POST", resource, mParams);
+			else
+				sign("POST", resource, mParams);
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Counts the objects and bytes the current thread allocates per
+	 * signature, as far as the runtime tracks them.
+	 */
+	private String countAllocations(boolean signer) throws Exception {
+		String resource = RESOURCES[1];
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+			for (int i = 0; i < SIGNATURES; i++) {
+				if (signer)
+					ScoreflexRequestSigner.getAuthorization("POST", resource, mParams);
+				else
+					sign("POST", resource, mParams);
+			}
+			return Debug.getThreadAllocCount() / SIGNATURES + " objects and "
+					+ Debug.getThreadAllocSize() / SIGNATURES + " bytes/signature";
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	/**
+	 * The signing code of ScoreflexRestClient.Request before
+	 * {@link ScoreflexRequestSigner}.
+	 */
+	private static String sign(String method, String resource,
+			Scoreflex.RequestParams params) throws Exception {
+		StringBuilder sb = new StringBuilder();
+
+		// Step 1: add HTTP method uppercase
+		sb.append(method);
+		sb.append('&');
+
+		// Step 2: add the URI
+		Uri uri = Uri.parse(resource);
+
+		// Query string is stripped from resource
+		sb.append(encode(String.format("%s%s", Scoreflex.getBaseURL(),
+				uri.getEncodedPath())));
+
+		// Step 3: add URL encoded parameters
+		sb.append('&');
+		TreeSet<String> paramNames = new TreeSet<String>();
+
+		// Params from the URL
+		Scoreflex.RequestParams queryStringParams = QueryStringParser
+				.getRequestParams(uri.getQuery());
+		if (null != queryStringParams)
+			paramNames.addAll(queryStringParams.getParamNames());
+
+		// Params from the request
+		if (null != params)
+			paramNames.addAll(params.getParamNames());
+
+		if (paramNames.size() > 0) {
+
+			String last = paramNames.last();
+			for (String paramName : paramNames) {
+				String paramValue = null;
+
+				if (null != params)
+					paramValue = params.getParamValue(paramName);
+
+				if (null == paramValue && null != queryStringParams)
+					paramValue = queryStringParams.getParamValue(paramName);
+
+				sb.append(encode(String.format("%s=%s", encode(paramName),
+						encode(paramValue))));
+				if (!last.equals(paramName))
+					sb.append("%26");
+
+			}
+		}
+
+		// Step 4: add body
+		sb.append('&');
+		Mac mac = Mac.getInstance("HmacSHA1");
+		SecretKeySpec secret = new SecretKeySpec(Scoreflex.getClientSecret()
+				.getBytes("UTF-8"), mac.getAlgorithm());
+		mac.init(secret);
+		byte[] digest = mac.doFinal(sb.toString().getBytes());
+		String sig = Base64.encodeToString(digest, Base64.DEFAULT).trim();
+		String encodedSig = encode(sig.trim());
+		return String.format("Scoreflex sig=\"%s\", meth=\"0\"", encodedSig);
+	}
+
+	private static String encode(String s) throws UnsupportedEncodingException {
+		return URLEncoder.encode(s, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+	}
+
+}
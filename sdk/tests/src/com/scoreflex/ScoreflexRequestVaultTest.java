@@ -0,0 +1,271 @@
+/*
+ * Licensed to Scoreflex (www.scoreflex.com) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Scoreflex licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.scoreflex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Tests of the batched replay of {@link ScoreflexRequestVault} against a
+ * stand-in server.
+ *
+ *
+ */
+public class ScoreflexRequestVaultTest extends TestCase {
+
+	/**
+	 * A stand-in server answering the batch resource with a given status,
+	 * anonymous token requests with a fresh token and every other request with
+	 * an empty object.
+	 *
+	 *
+	 */
+	private static class StandInServer implements ScoreflexRestClient.Transport {
+		private List<String> mPaths = new ArrayList<String>();
+		private int mBatchStatus;
+		private JSONArray mBatchResponses;
+
+		public synchronized void setBatchStatus(int batchStatus) {
+			mBatchStatus = batchStatus;
+		}
+
+		public synchronized void setBatchResponses(JSONArray batchResponses) {
+			mBatchResponses = batchResponses;
+		}
+
+		@Override
+		public void send(HttpUriRequest request, Callback callback) {
+			String path = request.getURI().getPath();
+			int status;
+			JSONArray responses;
+			synchronized(this) {
+				mPaths.add(path);
+				notifyAll();
+				status = path.endsWith(BATCH_RESOURCE) ? mBatchStatus : 200;
+				responses = mBatchResponses;
+			}
+
+			JSONObject body = new JSONObject();
+			try {
+				if (path.endsWith("/oauth/anonymousAccessToken")) {
+					body.put("accessToken", new JSONObject().put("token", FRESH_TOKEN));
+					body.put("sid", "sid");
+					body.put("me", new JSONObject().put("id", "player"));
+				} else if (200 == status && path.endsWith(BATCH_RESOURCE)) {
+					body.put("responses", null != responses ? responses
+							: new JSONArray().put(new JSONObject()).put(new JSONObject())
+									.put(new JSONObject()));
+				}
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+			callback.onResponse(status, new Header[0], body);
+		}
+
+		public synchronized List<String> awaitPaths(int count)
+				throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (mPaths.size() < count && System.currentTimeMillis() < deadline)
+				wait(deadline - System.currentTimeMillis());
+			return new ArrayList<String>(mPaths);
+		}
+	}
+
+	private static final String BATCH_RESOURCE = "/batch";
+	private static final String FRESH_TOKEN = "fresh";
+
+	private File mJournal;
+	private ScoreflexJobQueue mQueue;
+	private ScoreflexRequestVault mVault;
+	private StandInServer mServer = new StandInServer();
+
+	@Override
+	protected void setUp() throws Exception {
+		mJournal = File.createTempFile("scoreflex_request_vault", ".journal");
+		mJournal.delete();
+		ScoreflexTrafficShaper.getDefault().setPeriod(0);
+		ScoreflexRestClient.setTransport(mServer);
+		ScoreflexRestClient.setCredentials("token", false, "sid", "player");
+
+		// Left reachable by the previous test, the vault would replay requests
+		// before its batch resource is set
+		Scoreflex.setNetworkAvailable(false);
+		mQueue = new ScoreflexJobQueue("test", 100, new ScoreflexJournalJobStore(
+				mJournal));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (null != mVault)
+			mVault.stop();
+		mJournal.delete();
+	}
+
+	private static JSONObject error(int status, int code) throws JSONException {
+		return new JSONObject().put("error",
+				new JSONObject().put("status", status).put("code", code)
+						.put("message", "Error " + status));
+	}
+
+	/**
+	 * Waits for the vault to hold the given number of requests.
+	 */
+	private void awaitSize(int size) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (mQueue.size() != size && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(size, mQueue.size());
+	}
+
+	/**
+	 * Saves POST requests, three by default, as serialized by
+	 * {@link ScoreflexRestClient.Request#toJSON()}, and starts a vault
+	 * replaying them in a batch.
+	 */
+	private void replayRequests() throws Exception {
+		replayRequests("/events/0", "/events/1", "/events/2");
+	}
+
+	private void replayRequests(String... resources) throws Exception {
+		replayRequests(10, resources);
+	}
+
+	private void replayRequests(int maxBatchSize, String... resources)
+			throws Exception {
+		ScoreflexJobQueue.Job last = null;
+		for (String resource : resources) {
+			JSONObject request = new JSONObject();
+			request.put("method", 2);
+			request.put("resource", resource);
+			request.put("params", new JSONObject());
+			last = mQueue.postJobWithDescription(request);
+		}
+		assertTrue(last.getPersistedFuture().get());
+
+		// Started once every request is queued, so that they share a batch
+		mVault = new ScoreflexRequestVault(mQueue);
+		mVault.setBatchResource(BATCH_RESOURCE, maxBatchSize);
+		mVault.onReachabilityChanged(true);
+	}
+
+	public void testRejectedBatchFallsBackToSingleRequests() throws Exception {
+		mServer.setBatchStatus(404);
+		replayRequests();
+
+		List<String> paths = mServer.awaitPaths(4);
+		assertEquals(4, paths.size());
+		assertTrue(paths.get(0).endsWith(BATCH_RESOURCE));
+		for (int i = 1; i < 4; i++)
+			assertFalse(paths.get(i).endsWith(BATCH_RESOURCE));
+		assertTrue(mVault.flush(5000).get());
+	}
+
+	public void testBacklogIsReplayedInAFewRoundTrips() throws Exception {
+		String[] resources = new String[100];
+		JSONArray responses = new JSONArray();
+		for (int i = 0; i < resources.length; i++) {
+			resources[i] = "/events/" + i;
+			responses.put(new JSONObject());
+		}
+		mServer.setBatchStatus(200);
+		mServer.setBatchResponses(responses);
+		replayRequests(25, resources);
+
+		awaitSize(0);
+		List<String> paths = mServer.awaitPaths(4);
+		assertEquals(4, paths.size());
+		for (String path : paths)
+			assertTrue(path.endsWith(BATCH_RESOURCE));
+	}
+
+	public void testBatchItemsAreHandledLikeSingleResponses() throws Exception {
+		mServer.setBatchStatus(200);
+		mServer.setBatchResponses(new JSONArray().put(new JSONObject())
+				.put(error(503, 0)).put(error(404, 0)));
+		replayRequests();
+
+		// Only the item failed by the server is kept, for a later replay
+		awaitSize(1);
+		Thread.sleep(300);
+		assertEquals(1, mServer.awaitPaths(1).size());
+		assertEquals(1, mQueue.size());
+	}
+
+	public void testInvalidTokenItemIsReplayed() throws Exception {
+		mServer.setBatchStatus(200);
+		mServer.setBatchResponses(new JSONArray().put(new JSONObject())
+				.put(new JSONObject()).put(error(401, Scoreflex.ERROR_INVALID_ACCESS_TOKEN)));
+		replayRequests();
+
+		// Replayed on its own with a new token
+		awaitSize(0);
+		assertEquals(FRESH_TOKEN, ScoreflexRestClient.getAccessToken());
+		List<String> paths = mServer.awaitPaths(3);
+		assertTrue(paths.get(1).endsWith("/oauth/anonymousAccessToken"));
+		assertTrue(paths.get(2).endsWith("/events/2"));
+	}
+
+	public void testOpenBreakerKeepsRequestsOutOfTheBatch() throws Exception {
+		ScoreflexCircuitBreaker breaker = ScoreflexCircuitBreaker
+				.forResource("/scores/level");
+		try {
+			for (int i = 0; i < 5; i++)
+				breaker.onFailure();
+			mServer.setBatchStatus(200);
+			replayRequests("/events/0", "/scores/level", "/events/1");
+
+			// The score waits for its breaker, the others are batched
+			awaitSize(1);
+			List<String> paths = mServer.awaitPaths(1);
+			assertEquals(1, paths.size());
+			assertTrue(paths.get(0).endsWith(BATCH_RESOURCE));
+		} finally {
+			breaker.onSuccess();
+		}
+	}
+
+	public void testFailedBatchIsRetriedAfterBackoff() throws Exception {
+		mServer.setBatchStatus(503);
+		replayRequests();
+
+		// Reposted with a delay rather than right away, batching left enabled
+		assertEquals(1, mServer.awaitPaths(1).size());
+		Thread.sleep(500);
+		assertEquals(1, mServer.awaitPaths(1).size());
+		assertEquals(3, mQueue.size());
+
+		mServer.setBatchStatus(200);
+		assertTrue(mVault.flush(5000).get());
+		List<String> paths = mServer.awaitPaths(2);
+		assertEquals(2, paths.size());
+		assertTrue(paths.get(1).endsWith(BATCH_RESOURCE));
+	}
+
+}